@@ -0,0 +1,442 @@
+package com.silencecork.blurimage.service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.silencecork.blurimage.BlurEngine;
+import com.silencecork.blurimage.DualFilterBlurEngine;
+import com.silencecork.blurimage.StackBlurEngine;
+import com.silencecork.blurimage.YuvBlurEngine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The blur engines of the app as a local HTTP service on the JDK's built-in server.
+ *
+ * Every request runs on its own virtual thread (a cached pool on JDKs before 21), the blurs
+ * themselves on a pool with one thread per core and a bounded queue; when that queue is full the
+ * request gets 503 instead of piling up. Decoding, blurring and encoding take permits for the
+ * pixels they hold from a budget of half the heap, so concurrent large uploads wait for each
+ * other instead of running out of memory. Endpoints:
+ *
+ * POST /blur?radius=12 with the image as body returns the blurred image.
+ * POST /blur?schedule=1,6,12 or ?frames=5 returns a zip of one image per radius, frames uses
+ *      the key frame schedule of the app and only takes its frame count.
+ * GET /stats returns counters, blur throughput and latency percentiles as JSON.
+ *
+ * Optional parameters: engine=stack|dual|yuv, format=png|jpeg (default png for images with
+ * alpha, jpeg otherwise), screenHeight for the frames schedule.
+ */
+public class BlurService {
+	
+	private static final int DEFAULT_PORT = 8080;
+	private static final int MAX_BODY_BYTES = 32 * 1024 * 1024;
+	private static final long MAX_PIXELS = 40L * 1000 * 1000;
+	private static final int MAX_RADIUS = 254;
+	private static final int MAX_FRAMES = 16;
+	private static final int BLUR_QUEUE_CAPACITY = 64;
+	/* how long a request waits for pixel permits before it gets 503 */
+	private static final long PIXEL_WAIT_SECONDS = 30;
+	
+	/* mirror BlurredImageView.BlurImageUtil */
+	private static final int KEY_FRAME_COUNT = 5;
+	private static final int MAX_SUPPORTED_BLUR_PIXELS = 25;
+	
+	private final HttpServer mServer;
+	private final ThreadPoolExecutor mBlurPool;
+	private final ExecutorService mRequestExecutor;
+	private final BlurStats mStats = new BlurStats();
+	/* one permit per decoded pixel, held from decode until the response is encoded */
+	private final Semaphore mPixels;
+	private final int mPixelBudget;
+	
+	public static void main(String[] args) throws IOException {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		BlurService service = new BlurService(port);
+		service.start();
+		System.out.println("blur service listening on port " + port);
+	}
+	
+	public BlurService(int port) throws IOException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		mBlurPool = new ThreadPoolExecutor(cores, cores, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(BLUR_QUEUE_CAPACITY), new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "blur #" + mCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		
+		}, new ThreadPoolExecutor.AbortPolicy());
+		mRequestExecutor = createRequestExecutor();
+		// int pixels, the budget is half of the heap
+		mPixelBudget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4 / 2);
+		mPixels = new Semaphore(mPixelBudget, true);
+		
+		mServer = HttpServer.create(new InetSocketAddress(port), 0);
+		mServer.setExecutor(mRequestExecutor);
+		mServer.createContext("/blur", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleBlur(exchange);
+			}
+		
+		});
+		mServer.createContext("/stats", new HttpHandler() {
+			
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = mStats.toJson(mBlurPool.getQueue().size(), mBlurPool.getMaximumPoolSize())
+						.getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				send(exchange, 200, body);
+			}
+		
+		});
+	}
+	
+	public void start() {
+		mServer.start();
+	}
+	
+	public void stop() {
+		mServer.stop(0);
+		mBlurPool.shutdownNow();
+		mRequestExecutor.shutdownNow();
+	}
+	
+	/**
+	 * One virtual thread per request where the JDK has them. Looked up reflectively so the
+	 * module still builds and runs on older JDKs.
+	 */
+	private static ExecutorService createRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	private void handleBlur(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		boolean success = false;
+		int pixelPermits = 0;
+		mStats.begin();
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "POST the image");
+				return;
+			}
+			Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			BlurEngine engine = engineFor(params.get("engine"));
+			int[] radii = radiiFor(params);
+			if (engine == null || radii == null) {
+				sendError(exchange, 400, "need radius=n, schedule=a,b,c or frames=" + KEY_FRAME_COUNT
+						+ ", engine=stack|dual|yuv");
+				return;
+			}
+			
+			byte[] body = readBody(exchange.getRequestBody());
+			if (body == null) {
+				sendError(exchange, 413, "image larger than " + MAX_BODY_BYTES + " bytes");
+				return;
+			}
+			ImageReader reader = openReader(body);
+			if (reader == null) {
+				sendError(exchange, 415, "not a supported image");
+				return;
+			}
+			BufferedImage image;
+			try {
+				// a small compressed body can describe a huge image, check the size before decoding
+				long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+				if (pixels * radii.length > MAX_PIXELS) {
+					sendError(exchange, 413, "more than " + MAX_PIXELS + " pixels to blur");
+					return;
+				}
+				// the decoded image, its pixel array and a copy per frame; a request larger than the
+				// whole budget takes all of it and runs alone
+				int cost = (int) Math.min(mPixelBudget, pixels * (radii.length + 2));
+				if (!mPixels.tryAcquire(cost, PIXEL_WAIT_SECONDS, TimeUnit.SECONDS)) {
+					mStats.rejected();
+					sendError(exchange, 503, "too many pixels in flight, retry later");
+					return;
+				}
+				pixelPermits = cost;
+				image = reader.read(0);
+			} catch (IIOException e) {
+				sendError(exchange, 415, "not a supported image: " + e.getMessage());
+				return;
+			} finally {
+				reader.dispose();
+			}
+			final int w = image.getWidth();
+			final int h = image.getHeight();
+			boolean alpha = image.getColorModel().hasAlpha();
+			String format = params.containsKey("format") ? params.get("format") : (alpha ? "png" : "jpeg");
+			if (!"png".equals(format) && !"jpeg".equals(format)) {
+				sendError(exchange, 400, "format is png or jpeg");
+				return;
+			}
+			final int[] source = image.getRGB(0, 0, w, h, null, 0, w);
+			
+			byte[] response;
+			if (params.containsKey("radius")) {
+				response = encode(blur(engine, source, w, h, radii[0]), w, h, alpha && "png".equals(format), format);
+				exchange.getResponseHeaders().set("Content-Type", "image/" + format);
+			} else {
+				ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+				ZipOutputStream zip = new ZipOutputStream(zipped);
+				// all frames are queued at once, the pool blurs them side by side
+				List<Future<int[]>> frames = new ArrayList<Future<int[]>>(radii.length);
+				try {
+					for (int i = 0; i < radii.length; i++) {
+						frames.add(submitBlur(engine, source, w, h, radii[i]));
+					}
+					for (int i = 0; i < radii.length; i++) {
+						zip.putNextEntry(new ZipEntry(String.format(Locale.US, "frame-%d-r%d.%s", i + 1, radii[i],
+								"jpeg".equals(format) ? "jpg" : "png")));
+						zip.write(encode(await(frames.get(i)), w, h, alpha && "png".equals(format), format));
+						zip.closeEntry();
+					}
+				} finally {
+					// a rejected or failed request gives its queued frames back to the others
+					for (Future<int[]> frame : frames) {
+						frame.cancel(true);
+					}
+				}
+				zip.close();
+				response = zipped.toByteArray();
+				exchange.getResponseHeaders().set("Content-Type", "application/zip");
+			}
+			send(exchange, 200, response);
+			success = true;
+		} catch (RejectedExecutionException e) {
+			mStats.rejected();
+			sendError(exchange, 503, "blur queue full, retry later");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			sendError(exchange, 503, "shutting down");
+		} catch (ExecutionException e) {
+			sendError(exchange, 500, "blur failed: " + e.getCause());
+		} catch (RuntimeException e) {
+			sendError(exchange, 500, "blur failed: " + e);
+		} finally {
+			mPixels.release(pixelPermits);
+			mStats.end(System.nanoTime() - start, success);
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * A reader positioned on the first image of body, only its header is read so far. Dispose
+	 * it when done.
+	 *
+	 * @return null if no ImageIO reader knows the format
+	 */
+	private static ImageReader openReader(byte[] body) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(body));
+		if (input == null) {
+			return null;
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if (!readers.hasNext()) {
+			input.close();
+			return null;
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(input, true, true);
+		return reader;
+	}
+	
+	private int[] blur(BlurEngine engine, int[] source, int w, int h, int radius)
+			throws InterruptedException, ExecutionException {
+		return await(submitBlur(engine, source, w, h, radius));
+	}
+	
+	private Future<int[]> submitBlur(final BlurEngine engine, final int[] source, final int w, final int h,
+			final int radius) {
+		return mBlurPool.submit(new Callable<int[]>() {
+			
+			@Override
+			public int[] call() {
+				int[] pix = source.clone();
+				long start = System.nanoTime();
+				engine.blur(pix, w, h, radius);
+				mStats.blurred((long) w * h, System.nanoTime() - start);
+				return pix;
+			}
+		
+		});
+	}
+	
+	private static int[] await(Future<int[]> future) throws InterruptedException, ExecutionException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw e;
+		}
+	}
+	
+	private static byte[] encode(int[] pix, int w, int h, boolean alpha, String format) throws IOException {
+		BufferedImage out = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		out.setRGB(0, 0, w, h, pix, 0, w);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageIO.write(out, format, bytes);
+		return bytes.toByteArray();
+	}
+	
+	private static BlurEngine engineFor(String name) {
+		if (name == null || "stack".equals(name)) {
+			return new StackBlurEngine();
+		} else if ("dual".equals(name)) {
+			return new DualFilterBlurEngine();
+		} else if ("yuv".equals(name)) {
+			return new YuvBlurEngine();
+		}
+		return null;
+	}
+	
+	/**
+	 * @return null if the parameters do not describe a valid radius or schedule
+	 */
+	private static int[] radiiFor(Map<String, String> params) {
+		try {
+			int[] radii;
+			if (params.containsKey("radius")) {
+				radii = new int[] { Integer.parseInt(params.get("radius")) };
+			} else if (params.containsKey("schedule")) {
+				String[] parts = params.get("schedule").split(",");
+				radii = new int[parts.length];
+				for (int i = 0; i < parts.length; i++) {
+					radii[i] = Integer.parseInt(parts[i].trim());
+				}
+			} else if (params.containsKey("frames")) {
+				// the app has exactly one schedule, there is no other count to mirror
+				if (Integer.parseInt(params.get("frames")) != KEY_FRAME_COUNT) {
+					return null;
+				}
+				int screenHeight = params.containsKey("screenHeight") ? Integer.parseInt(params.get("screenHeight")) : 1920;
+				radii = keyFrameRadii(screenHeight);
+			} else {
+				return null;
+			}
+			if (radii.length == 0 || radii.length > MAX_FRAMES) {
+				return null;
+			}
+			for (int radius : radii) {
+				if (radius < 0 || radius > MAX_RADIUS) {
+					return null;
+				}
+			}
+			return radii;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * BlurImageUtil.blurRadiusAtFrame() for frames 1..KEY_FRAME_COUNT on a screen of the given
+	 * height.
+	 */
+	static int[] keyFrameRadii(int screenHeight) {
+		int maxBlurPx = (int) (screenHeight * 400 * 0.0001f);
+		int sampleSize = 4;
+		while (maxBlurPx / sampleSize > MAX_SUPPORTED_BLUR_PIXELS) {
+			sampleSize <<= 1;
+		}
+		int maxPrescaledBlurPixels = maxBlurPx / sampleSize;
+		
+		int[] radii = new int[KEY_FRAME_COUNT];
+		for (int i = 0; i < radii.length; i++) {
+			// AccelerateDecelerateInterpolator
+			float input = (i + 1) / (float) KEY_FRAME_COUNT;
+			float interpolated = (float) (Math.cos((input + 1) * Math.PI) / 2.0f) + 0.5f;
+			radii[i] = (int) (maxPrescaledBlurPixels * interpolated);
+		}
+		return radii;
+	}
+	
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+	
+	/**
+	 * @return null if the body is larger than MAX_BODY_BYTES
+	 */
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			if (body.size() + read > MAX_BODY_BYTES) {
+				return null;
+			}
+			body.write(buffer, 0, read);
+		}
+		return body.toByteArray();
+	}
+	
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, (message + "\n").getBytes("UTF-8"));
+	}
+	
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+}
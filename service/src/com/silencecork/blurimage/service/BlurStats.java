@@ -0,0 +1,87 @@
+package com.silencecork.blurimage.service;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of {@link BlurService}: requests, failures, pixels blurred, and the latency of the
+ * last {@link #WINDOW} requests for the percentiles.
+ */
+class BlurStats {
+	
+	static final int WINDOW = 1024;
+	
+	private final long mStartNanos = System.nanoTime();
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mFailures = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mPixels = new AtomicLong();
+	private final AtomicLong mBlurNanos = new AtomicLong();
+	private final AtomicInteger mInFlight = new AtomicInteger();
+	
+	/* ring buffer of request latencies in nanoseconds */
+	private final long[] mLatencies = new long[WINDOW];
+	private long mLatencyCount;
+	
+	void begin() {
+		mInFlight.incrementAndGet();
+	}
+	
+	void end(long latencyNanos, boolean success) {
+		mInFlight.decrementAndGet();
+		mRequests.incrementAndGet();
+		if (!success) {
+			mFailures.incrementAndGet();
+		}
+		synchronized (mLatencies) {
+			mLatencies[(int) (mLatencyCount++ % WINDOW)] = latencyNanos;
+		}
+	}
+	
+	void rejected() {
+		mRejected.incrementAndGet();
+	}
+	
+	void blurred(long pixels, long nanos) {
+		mPixels.addAndGet(pixels);
+		mBlurNanos.addAndGet(nanos);
+	}
+	
+	String toJson(int queued, int blurThreads) {
+		long[] window;
+		synchronized (mLatencies) {
+			window = Arrays.copyOf(mLatencies, (int) Math.min(WINDOW, mLatencyCount));
+		}
+		Arrays.sort(window);
+		double uptime = (System.nanoTime() - mStartNanos) / 1e9;
+		double blurSeconds = mBlurNanos.get() / 1e9;
+		
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append(String.format(Locale.US, "  \"uptimeSeconds\": %.1f,%n", uptime));
+		json.append("  \"requests\": ").append(mRequests.get()).append(",\n");
+		json.append("  \"failures\": ").append(mFailures.get()).append(",\n");
+		json.append("  \"rejected\": ").append(mRejected.get()).append(",\n");
+		json.append("  \"inFlight\": ").append(mInFlight.get()).append(",\n");
+		json.append("  \"queuedBlurs\": ").append(queued).append(",\n");
+		json.append("  \"blurThreads\": ").append(blurThreads).append(",\n");
+		json.append(String.format(Locale.US, "  \"requestsPerSecond\": %.2f,%n", mRequests.get() / uptime));
+		json.append(String.format(Locale.US, "  \"megapixelsPerBlurSecond\": %.2f,%n",
+				(blurSeconds > 0) ? mPixels.get() / 1e6 / blurSeconds : 0));
+		json.append("  \"latencyMillis\": {");
+		json.append(String.format(Locale.US, "\"p50\": %.1f, \"p95\": %.1f, \"p99\": %.1f, \"max\": %.1f",
+				percentile(window, 0.50), percentile(window, 0.95), percentile(window, 0.99), percentile(window, 1)));
+		json.append("}\n}\n");
+		return json.toString();
+	}
+	
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+}
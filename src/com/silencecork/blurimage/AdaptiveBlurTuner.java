@@ -0,0 +1,170 @@
+package com.silencecork.blurimage;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Picks the cheapest loss of quality that still builds a key frame set within a target latency.
+ * A short calibration blur measures each engine when the tuner is first used, afterwards every
+ * real key frame blur refines the estimate. The tuner can swap StackBlur for the dual filter,
+ * blur a downscaled source, or build every other frame, see {@link #tune}.
+ */
+public class AdaptiveBlurTuner {
+	private static final String TAG = "AdaptiveBlurTuner";
+	
+	public static final long DEFAULT_TARGET_LATENCY_MS = 300;
+	
+	private static final int CALIBRATION_SIZE = 256;
+	private static final int CALIBRATION_RADIUS = 16;
+	private static final int CALIBRATION_RUNS = 3;
+	
+	/* weight of a new timing in the running estimate */
+	private static final double REFINE_WEIGHT = 0.2;
+	
+	/* {downscale, frame stride}, from the best looking to the cheapest */
+	private static final int[][] STEPS = {
+		{1, 1},
+		{2, 1},
+		{2, 2},
+		{4, 2}
+	};
+	
+	private static AdaptiveBlurTuner sInstance;
+	
+	private final HashMap<Class<?>, Double> mNanosPerPixel = new HashMap<Class<?>, Double>();
+	private long mTargetLatencyNanos = DEFAULT_TARGET_LATENCY_MS * 1000 * 1000;
+	
+	public static synchronized AdaptiveBlurTuner getInstance() {
+		if (sInstance == null) {
+			sInstance = new AdaptiveBlurTuner();
+			sInstance.startCalibration();
+		}
+		return sInstance;
+	}
+	
+	private AdaptiveBlurTuner() {
+	}
+	
+	/**
+	 * How long building one key frame set may take.
+	 */
+	public synchronized void setTargetLatency(long millis) {
+		mTargetLatencyNanos = millis * 1000 * 1000;
+	}
+	
+	public synchronized long getTargetLatency() {
+		return mTargetLatencyNanos / (1000 * 1000);
+	}
+	
+	private void startCalibration() {
+		Thread thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				calibrate(new StackBlurEngine());
+				calibrate(new DualFilterBlurEngine());
+			}
+		
+		}, "BlurTuner calibration");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	private void calibrate(BlurEngine engine) {
+		int w = CALIBRATION_SIZE;
+		int h = CALIBRATION_SIZE;
+		int[] source = new int[w * h];
+		Random random = new Random(1);
+		for (int i = 0; i < source.length; i++) {
+			source[i] = 0xff000000 | (random.nextInt() & 0xffffff);
+		}
+		int[] pix = new int[w * h];
+		
+		// the first run warms up the JIT and is not counted
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run <= CALIBRATION_RUNS; run++) {
+			System.arraycopy(source, 0, pix, 0, pix.length);
+			long start = System.nanoTime();
+			engine.blur(pix, w, h, CALIBRATION_RADIUS);
+			long elapsed = System.nanoTime() - start;
+			if (run > 0) {
+				best = Math.min(best, elapsed);
+			}
+		}
+		synchronized (this) {
+			if (!mNanosPerPixel.containsKey(engine.getClass())) {
+				mNanosPerPixel.put(engine.getClass(), (double) best / (w * h));
+			}
+		}
+		Log.d(TAG, engine.getClass().getSimpleName() + " calibrated at " + (best / (w * h)) + " ns per pixel");
+	}
+	
+	/**
+	 * Feed back the time a real key frame blur took, including reading and writing the bitmap.
+	 */
+	public synchronized void record(BlurEngine engine, int pixels, long nanos) {
+		if (pixels <= 0) {
+			return;
+		}
+		double measured = (double) nanos / pixels;
+		Double estimate = mNanosPerPixel.get(engine.getClass());
+		mNanosPerPixel.put(engine.getClass(), (estimate == null) ? measured
+				: estimate + REFINE_WEIGHT * (measured - estimate));
+	}
+	
+	/**
+	 * Make plan meet the target latency for a width x height source: first try the dual filter
+	 * instead of StackBlur, then a downscaled source, then fewer frames. Settings already
+	 * lowered by the plan are never raised. Until calibration finished the plan is left alone.
+	 */
+	public synchronized void tune(KeyFrameGenerator.Plan plan, int width, int height, int frameCount) {
+		BlurEngine preferred = plan.engine;
+		// an engine chosen by the app is kept, only the default one is swapped
+		BlurEngine faster = (preferred instanceof StackBlurEngine) ? new DualFilterBlurEngine() : null;
+		if (!mNanosPerPixel.containsKey(preferred.getClass())) {
+			return;
+		}
+		
+		for (int[] step : STEPS) {
+			int downscale = Math.max(plan.downscale, step[0]);
+			int frameStride = Math.max(plan.frameStride, step[1]);
+			if (estimate(preferred, width, height, frameCount, downscale, frameStride, plan.parallel) <= mTargetLatencyNanos) {
+				apply(plan, preferred, downscale, frameStride);
+				return;
+			}
+			if (faster != null && mNanosPerPixel.containsKey(faster.getClass())
+					&& estimate(faster, width, height, frameCount, downscale, frameStride, plan.parallel) <= mTargetLatencyNanos) {
+				apply(plan, faster, downscale, frameStride);
+				return;
+			}
+		}
+		int[] cheapest = STEPS[STEPS.length - 1];
+		boolean useFaster = faster != null && mNanosPerPixel.containsKey(faster.getClass())
+				&& mNanosPerPixel.get(faster.getClass()) < mNanosPerPixel.get(preferred.getClass());
+		apply(plan, useFaster ? faster : preferred, Math.max(plan.downscale, cheapest[0]),
+				Math.max(plan.frameStride, cheapest[1]));
+	}
+	
+	private void apply(KeyFrameGenerator.Plan plan, BlurEngine engine, int downscale, int frameStride) {
+		if (engine != plan.engine || downscale != plan.downscale || frameStride != plan.frameStride) {
+			Log.d(TAG, "tuned to " + engine.getClass().getSimpleName() + ", downscale " + downscale
+					+ ", every " + frameStride + " frame(s)");
+		}
+		plan.engine = engine;
+		plan.downscale = downscale;
+		plan.frameStride = frameStride;
+	}
+	
+	private long estimate(BlurEngine engine, int width, int height, int frameCount, int downscale,
+			int frameStride, boolean parallel) {
+		long pixels = (long) (width / downscale) * (height / downscale);
+		int frames = (frameCount + frameStride - 1) / frameStride;
+		double nanos = mNanosPerPixel.get(engine.getClass()) * pixels * frames;
+		if (parallel) {
+			nanos /= Math.min(frames, KeyFrameGenerator.getParallelism());
+		}
+		return (long) nanos;
+	}
+}
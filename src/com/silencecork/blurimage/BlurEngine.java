@@ -0,0 +1,26 @@
+package com.silencecork.blurimage;
+
+/**
+ * A blur kernel working on packed ARGB pixels. Implementations only use plain Java so they
+ * can run anywhere the pixels can be read into an int array. An engine may be called from
+ * several threads at once, so it must not keep per call state in fields.
+ */
+public interface BlurEngine {
+	
+	/**
+	 * Blur the pixels in place and keep their alpha channel.
+	 * 
+	 * @param pix packed ARGB pixels, w * h long
+	 * @param w width of the image
+	 * @param h height of the image
+	 * @param radius blur radius on the StackBlur scale, so every engine follows the
+	 *        same blurRadiusAtFrame schedule
+	 */
+	public void blur(int[] pix, int w, int h, int radius);
+	
+	/**
+	 * How far the blur of the given radius reaches, in pixels: a pixel further away than this
+	 * from the edge of a region does not change the result inside it.
+	 */
+	public int support(int radius);
+}
@@ -0,0 +1,173 @@
+package com.silencecork.blurimage;
+
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Process wide scheduler for blur work. All {@link BlurredImageView}s share one bounded worker
+ * pool, jobs of visible views run before jobs of views which are only attached, and those
+ * before detached ones. Every owner has at most one job: submitting again drops the job that
+ * is still waiting, or interrupts the one already running.
+ */
+public class BlurScheduler {
+	private static final String TAG = "BlurScheduler";
+	
+	/* work for images which are not shown yet, e.g. the neighbours in a pager */
+	public static final int PRIORITY_PREFETCH = -1;
+	public static final int PRIORITY_DETACHED = 0;
+	public static final int PRIORITY_ATTACHED = 1;
+	public static final int PRIORITY_VISIBLE = 2;
+	/* tiny jobs which put something on screen right away, e.g. a blurred EXIF thumbnail */
+	public static final int PRIORITY_PLACEHOLDER = 3;
+	
+	private static final int MAX_THREADS = 2;
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	
+	private static BlurScheduler sInstance;
+	
+	private final ThreadPoolExecutor mExecutor;
+	private final HashMap<Object, Job> mJobs = new HashMap<Object, Job>();
+	private final AtomicLong mSequence = new AtomicLong();
+	
+	public static synchronized BlurScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new BlurScheduler();
+		}
+		return sInstance;
+	}
+	
+	private BlurScheduler() {
+		int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+		mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BlurScheduler #" + mCount.getAndIncrement());
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+			
+		});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Queue work for owner, replacing whatever owner submitted before.
+	 */
+	public void submit(Object owner, int priority, Runnable work) {
+		Job job = new Job(owner, priority, mSequence.incrementAndGet(), work);
+		synchronized (mJobs) {
+			Job previous = mJobs.put(owner, job);
+			if (previous != null) {
+				drop(previous);
+			}
+		}
+		mExecutor.execute(job);
+	}
+	
+	/**
+	 * Move the waiting job of owner to another priority. A running job is not affected.
+	 */
+	public void setPriority(Object owner, int priority) {
+		synchronized (mJobs) {
+			Job job = mJobs.get(owner);
+			if (job == null || job.mPriority == priority) {
+				return;
+			}
+			if (mExecutor.remove(job)) {
+				job.mPriority = priority;
+				mExecutor.execute(job);
+			} else {
+				job.mPriority = priority;
+			}
+		}
+	}
+	
+	public void cancel(Object owner) {
+		synchronized (mJobs) {
+			Job job = mJobs.remove(owner);
+			if (job != null) {
+				drop(job);
+			}
+		}
+	}
+	
+	private void drop(Job job) {
+		if (!mExecutor.remove(job)) {
+			job.cancel();
+		}
+	}
+	
+	private void finish(Job job) {
+		synchronized (mJobs) {
+			if (mJobs.get(job.mOwner) == job) {
+				mJobs.remove(job.mOwner);
+			}
+		}
+	}
+	
+	private class Job implements Runnable, Comparable<Job> {
+		private final Object mOwner;
+		private final long mSequence;
+		private final Runnable mWork;
+		private volatile int mPriority;
+		private Thread mThread;
+		private boolean mIsCancelled;
+		private boolean mIsDone;
+		
+		Job(Object owner, int priority, long sequence, Runnable work) {
+			mOwner = owner;
+			mPriority = priority;
+			mSequence = sequence;
+			mWork = work;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (mIsCancelled) {
+					return;
+				}
+				mThread = Thread.currentThread();
+			}
+			try {
+				mWork.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "blur job failed", e);
+			} finally {
+				synchronized (this) {
+					mIsDone = true;
+					mThread = null;
+					// a cancel that raced with the end of the work must not leak into the next job
+					Thread.interrupted();
+				}
+				finish(this);
+			}
+		}
+		
+		synchronized void cancel() {
+			mIsCancelled = true;
+			if (mThread != null && !mIsDone) {
+				mThread.interrupt();
+			}
+		}
+
+		@Override
+		public int compareTo(Job another) {
+			if (mPriority != another.mPriority) {
+				return (mPriority > another.mPriority) ? -1 : 1;
+			}
+			// newest first, a freshly bound view is the one the user is looking at
+			return (mSequence > another.mSequence) ? -1 : (mSequence < another.mSequence) ? 1 : 0;
+		}
+	}
+}
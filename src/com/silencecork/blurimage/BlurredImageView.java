@@ -1,25 +1,48 @@
 package com.silencecork.blurimage;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
-import android.os.AsyncTask;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.View;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.Interpolator;
 import android.widget.ImageView;
 
 public class BlurredImageView extends ImageView {
 	
+	private static final String TAG = "BlurredImageView";
+	
+	/* Long side prefetched photos are decoded to, and the reference for the key frame radius. */
+	public static final int DEFAULT_DECODE_LONG_SIDE = 800;
+	/* prefetched photos are decoded at DEFAULT_DECODE_LONG_SIDE, so their radii are not scaled */
+	private static final float PREFETCH_RADIUS_SCALE = 1;
+	public static final int PREFETCH_NONE = 0;
+	public static final int PREFETCH_FORWARD = 1;
+	public static final int PREFETCH_BACKWARD = -1;
+	private static final int PLACEHOLDER_LONG_SIDE = 128;
 	private static final int MSG_FADE_IN = 100;
 	private static final int MSG_FADE_OUT = 200;
 	private static final int DEFAULT_WAIT_TIME_BETWEEN_ANIMATION = 5000;
@@ -30,13 +53,71 @@ public class BlurredImageView extends ImageView {
 	private int mInitAlphaMask = 125;
 	
 	private Bitmap mBitmap;
+	/* mBitmap was decoded by the view, not given by the caller, and is recycled with it */
+	private boolean mIsBitmapOwned;
+	/* the file or URI mBitmap is decoded from by the view itself, null for a given bitmap */
+	private String mSourcePath;
+	private Uri mSourceUri;
+	private int mSourceGeneration;
+	/* size of the source file and the long side mBitmap was decoded for, 0 until it is decoded */
+	private int mSourceWidth;
+	private int mSourceHeight;
+	private int mDecodedLongSide;
+	private float mRadiusScale = 1;
 	private Bitmap[] mDisplayedBitmaps = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
 	private BlurImageUtil mBlurImageUtil;
-	private AsyncTask<Bitmap, Void, Void> mBlurImageLoader;
+	private KeyFrameSet mKeyFrameSet;
+	/* the reference on the frames in mDisplayedBitmaps, or on the one frame still shown after a trim */
+	private KeyFrameHandle mKeyFrameHandle;
+	/* BlurScheduler owner of the key frame job, handed on with the job by RetainedKeyFrames */
+	private Object mBlurToken = new Object();
+	private boolean mIsAttached;
+	private boolean mIsViewportOnlyBlur;
+	private Rect mKeyFrameRegion;
+	private SummedAreaTable mSummedAreaTable;
+	private int[] mBlurToPixels;
+	private Bitmap mBlurToBitmap;
+	private final Object mPlaceholderToken = new Object();
+	private Bitmap mPlaceholder;
+	private int mPlaceholderGeneration;
+	private boolean mIsKeyFrameShown;
+	private KeyFrameGenerator mKeyFrameGenerator;
+	private boolean mIsParallelKeyFrames;
 	private boolean mIsPrepared;
+	private boolean mIsKeyFramesTrimmed;
+	private boolean mIsOffHeapKeyFrames;
+	private boolean mIsAdaptiveQuality;
+	private KeyFrameSlab mKeyFrameSlab;
+	private Bitmap mSlabDisplayBitmap;
+	private boolean mIsCompressedKeyFrames;
+	private CompressedKeyFrames mCompressedKeyFrames;
+	/* the frame on screen and the one shown next, decoded from mCompressedKeyFrames */
+	private Bitmap[] mDecodedKeyFrames = new Bitmap[2];
+	private final int[] mDecodedKeyFrameIndices = { -1, -1 };
+	private int mShownDecodedSlot = -1;
+	private int[] mDecodeRows;
+	/* the view's own thread decoding compressed key frames, the blur pool can be busy for seconds */
+	private HandlerThread mDecodeThread;
+	private Handler mDecodeHandler;
+	/* the slot and frame a background decode is writing, -1 while none runs */
+	private int mDecodingSlot = -1;
+	private int mDecodingIndex = -1;
+	private int mDecodeGeneration;
+	/* the frame to decode once the running decode is done, and the one to show when it is */
+	private int mPendingDecodeIndex = -1;
+	private int mWantedDecodedIndex = -1;
+	private int mPendingPlayWaitTime = -1;
 	private Paint mPaint;
 	private boolean mIsPlayDone = true;
 	private static final boolean IS_SCALE_BLURRED = false;
+	private static final int[] BAYER_4X4 = {
+		 0,  8,  2, 10,
+		12,  4, 14,  6,
+		 3, 11,  1,  9,
+		15,  7, 13,  5
+	};
+	
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 	
 	private Handler mHandler = new Handler() {
 
@@ -69,18 +150,348 @@ public class BlurredImageView extends ImageView {
 	private void init(Context context){
 		mBlurImageUtil = new BlurImageUtil(context);
 		mBlurImageUtil.recomputeMaxPreScaleBlurPixels();
+		mKeyFrameGenerator = new KeyFrameGenerator(mBlurImageUtil);
 		mColor = Color.argb(mInitAlphaMask, 0, 0, 0);
 		mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
 		mPaint.setColor(mColor);
 		mProgressAlpha = mInitAlphaMask / BlurImageUtil.KEY_FRAME_COUNT;
 	}
 	
+	/**
+	 * The bitmap stays the caller's, the view never recycles it.
+	 */
 	public void setImageBitmapForAnimation(Bitmap bm) {
-		super.setImageBitmap(null);
-		loadBlurKeyFrameImage(bm);
+		forgetSource();
+		showBitmapForAnimation(bm, false, 1);
+	}
+	
+	/**
+	 * Show the image file at path. It is decoded in the background once the view is laid out,
+	 * at the size the view displays it with its scale type and never larger than the file, so
+	 * decoding and blurring cost what the screen shows. The key frame radii grow with the decoded
+	 * size to look the same as on a {@link #DEFAULT_DECODE_LONG_SIDE} decode. A blurred
+	 * placeholder is shown until the key frames are ready.
+	 */
+	public void setImageSourceForAnimation(String path) {
+		if (TextUtils.isEmpty(path)) {
+			return;
+		}
+		forgetSource();
+		mSourcePath = path;
+		showBlurredPlaceholder(path);
+		requestSourceDecode();
+	}
+	
+	/**
+	 * Same as {@link #setImageSourceForAnimation(String)} for a file or MediaStore URI, which
+	 * is resolved to its file in the background.
+	 */
+	public void setImageSourceForAnimation(Uri uri) {
+		if (uri == null) {
+			return;
+		}
+		forgetSource();
+		mSourceUri = uri;
+		requestSourceDecode();
+	}
+	
+	private void forgetSource() {
+		mSourcePath = null;
+		mSourceUri = null;
+		mSourceWidth = 0;
+		mSourceHeight = 0;
+		mDecodedLongSide = 0;
+		mSourceGeneration++;
+	}
+	
+	private void showBitmapForAnimation(Bitmap bm, boolean owned, float radiusScale) {
+		if (mPlaceholder == null) {
+			super.setImageBitmap(null);
+		}
+		if (bm == null || bm == mBitmap) {
+			return;
+		}
+		release();
+		mBitmap = bm;
+		mIsBitmapOwned = owned;
+		mRadiusScale = radiusScale;
+		startKeyFrameGeneration();
+	}
+	
+	/**
+	 * Decode the source for the current size of the view, or do nothing until it has one.
+	 */
+	private void requestSourceDecode() {
+		final int viewWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+		final int viewHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+		if ((mSourcePath == null && mSourceUri == null) || viewWidth <= 0 || viewHeight <= 0) {
+			return;
+		}
+		final String path = mSourcePath;
+		final Uri uri = mSourceUri;
+		final ScaleType scaleType = getScaleType();
+		final Context context = getContext().getApplicationContext();
+		final int generation = ++mSourceGeneration;
+		BlurScheduler.getInstance().submit(mBlurToken, currentBlurPriority(), new Runnable() {
+
+			@Override
+			public void run() {
+				final String file = (path != null) ? path : FileUtil.getImagePath(context, uri);
+				if (file == null) {
+					Log.e(TAG, "can not resolve " + uri);
+					return;
+				}
+				if (path == null) {
+					mHandler.post(new Runnable() {
+
+						@Override
+						public void run() {
+							if (generation == mSourceGeneration) {
+								showBlurredPlaceholder(file);
+							}
+						}
+						
+					});
+				}
+				
+				BitmapFactory.Options opts = new BitmapFactory.Options();
+				opts.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(file, opts);
+				if (opts.outWidth <= 0 || opts.outHeight <= 0 || Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				final int sourceWidth = opts.outWidth;
+				final int sourceHeight = opts.outHeight;
+				final int longSide = displayedLongSide(sourceWidth, sourceHeight, viewWidth, viewHeight, scaleType);
+				final Bitmap bitmap = ThumbnailUtils.decodeBitmapBaseOnLongSide(file, longSide);
+				if (bitmap == null) {
+					return;
+				}
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (generation != mSourceGeneration) {
+							bitmap.recycle();
+							return;
+						}
+						showBitmapForAnimation(bitmap, true, longSide / (float) DEFAULT_DECODE_LONG_SIDE);
+						mSourceWidth = sourceWidth;
+						mSourceHeight = sourceHeight;
+						mDecodedLongSide = longSide;
+					}
+					
+				});
+			}
+			
+		});
+	}
+	
+	/**
+	 * The long side an image of imageWidth x imageHeight has on screen in a view of that size,
+	 * at most its own. CENTER and MATRIX keep the full resolution, since the image is shown
+	 * unscaled or zoomed.
+	 */
+	static int displayedLongSide(int imageWidth, int imageHeight, int viewWidth, int viewHeight, ScaleType scaleType) {
+		float scaleX = viewWidth / (float) imageWidth;
+		float scaleY = viewHeight / (float) imageHeight;
+		float scale;
+		if (scaleType == ScaleType.CENTER || scaleType == ScaleType.MATRIX) {
+			scale = 1;
+		} else if (scaleType == ScaleType.CENTER_CROP || scaleType == ScaleType.FIT_XY) {
+			scale = Math.max(scaleX, scaleY);
+		} else {
+			// FIT_CENTER, FIT_START, FIT_END and CENTER_INSIDE
+			scale = Math.min(scaleX, scaleY);
+		}
+		int longSide = Math.max(imageWidth, imageHeight);
+		return Math.max(1, Math.min(longSide, Math.round(longSide * scale)));
+	}
+	
+	/**
+	 * Show a blurred preview of an image file within a few milliseconds, made from its EXIF
+	 * thumbnail or a heavily subsampled decode. Call it before decoding the file, the preview
+	 * stays until the key frames of the bitmap given to {@link #setImageBitmapForAnimation(Bitmap)}
+	 * are ready.
+	 */
+	public void showBlurredPlaceholder(final String path) {
+		if (TextUtils.isEmpty(path)) {
+			return;
+		}
+		final int generation = ++mPlaceholderGeneration;
+		BlurScheduler.getInstance().submit(mPlaceholderToken, BlurScheduler.PRIORITY_PLACEHOLDER, new Runnable() {
+
+			@Override
+			public void run() {
+				final Bitmap placeholder = createPlaceholder(path);
+				if (placeholder == null) {
+					return;
+				}
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						onPlaceholderReady(generation, placeholder);
+					}
+					
+				});
+			}
+			
+		});
+	}
+	
+	private Bitmap createPlaceholder(String path) {
+		Bitmap thumb = ThumbnailUtils.createBitmapFromEXIF(path);
+		if (thumb == null) {
+			thumb = ThumbnailUtils.decodeBitmapBaseOnLongSide(path, PLACEHOLDER_LONG_SIDE);
+		}
+		if (thumb == null) {
+			return null;
+		}
+		// same strength relative to the image as the most blurred key frame of a full decode
+		int longSide = Math.max(thumb.getWidth(), thumb.getHeight());
+		float radius = mBlurImageUtil.blurRadiusAtFrame(BlurImageUtil.KEY_FRAME_COUNT) * longSide / DEFAULT_DECODE_LONG_SIDE;
+		Bitmap placeholder = mBlurImageUtil.fastblur(thumb, Math.max(1, Math.round(radius)));
+		thumb.recycle();
+		return placeholder;
+	}
+	
+	private void onPlaceholderReady(int generation, Bitmap placeholder) {
+		// showing a key frame drops the placeholder and starts a new generation, so a key frame
+		// still on screen from before the request belongs to the previous image
+		if (generation != mPlaceholderGeneration) {
+			placeholder.recycle();
+			return;
+		}
+		Bitmap old = mPlaceholder;
+		mPlaceholder = placeholder;
+		setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), placeholder, null));
+		if (old != null) {
+			old.recycle();
+		}
+	}
+	
+	private void dropPlaceholder() {
+		mPlaceholderGeneration++;
+		BlurScheduler.getInstance().cancel(mPlaceholderToken);
+		if (mPlaceholder != null) {
+			mPlaceholder.recycle();
+			mPlaceholder = null;
+		}
+	}
+	
+	/**
+	 * Keep key frames of opaque images as dithered RGB_565, which halves their memory.
+	 * Takes effect from the next call to {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setReducedPrecisionKeyFrames(boolean reduced) {
+		mBlurImageUtil.setReducedPrecision(reduced);
+	}
+	
+	/**
+	 * Choose the kernel used to build key frames, e.g. {@link DualFilterBlurEngine} for
+	 * strong blurs. Takes effect from the next call to {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setBlurEngine(BlurEngine engine) {
+		mBlurImageUtil.setBlurEngine(engine);
+	}
+	
+	/**
+	 * Blur the key frames concurrently on a shared bounded pool instead of one after another.
+	 * Takes effect from the next call to {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setParallelKeyFrames(boolean parallel) {
+		mIsParallelKeyFrames = parallel;
+	}
+	
+	/**
+	 * Let {@link AdaptiveBlurTuner} trade quality for speed so a key frame set is ready within
+	 * its target latency on this device. Takes effect from the next call to
+	 * {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setAdaptiveQuality(boolean adaptive) {
+		mIsAdaptiveQuality = adaptive;
+		if (adaptive) {
+			// starts the calibration early, off the main thread
+			AdaptiveBlurTuner.getInstance();
+		}
+	}
+	
+	/**
+	 * Keep the key frames in one direct ByteBuffer outside of the heap and copy a frame into a
+	 * single display bitmap only while it is shown. Frames are then built privately for this view
+	 * instead of being shared through {@link KeyFrameCache}. Takes effect from the next call to
+	 * {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setOffHeapKeyFrames(boolean offHeap) {
+		mIsOffHeapKeyFrames = offHeap;
+	}
+	
+	/**
+	 * Keep the key frames losslessly compressed on the heap, see {@link CompressedKeyFrames},
+	 * and decode only the frame on screen and the one after it while playing. Frames are then
+	 * built privately for this view instead of being shared through {@link KeyFrameCache}.
+	 * Wins over {@link #setOffHeapKeyFrames(boolean)}. Takes effect from the next call to
+	 * {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setCompressedKeyFrames(boolean compressed) {
+		mIsCompressedKeyFrames = compressed;
+	}
+	
+	/**
+	 * Only blur the part of the bitmap which is on screen (plus a halo the blur reaches into),
+	 * useful with centerCrop or zoomed matrices. Needs the view to be laid out, otherwise the
+	 * whole bitmap is blurred. Takes effect from the next call to
+	 * {@link #setImageBitmapForAnimation(Bitmap)}.
+	 */
+	public void setViewportOnlyBlur(boolean viewportOnly) {
+		mIsViewportOnlyBlur = viewportOnly;
+	}
+	
+	/**
+	 * Show the bitmap blurred with any radius (StackBlur scale, 0 shows it sharp), e.g. to
+	 * follow a scroll or gesture position. The first call builds a summed-area table of the
+	 * bitmap, after that every call is a constant amount of work per pixel.
+	 * 
+	 * @return false if there is no bitmap or an animation is playing
+	 */
+	public boolean blurTo(float radius) {
+		if (mBitmap == null || mBitmap.isRecycled() || !mIsPlayDone) {
+			return false;
+		}
+		
+		float maxRadius = mBlurImageUtil.blurRadiusAtFrame(BlurImageUtil.KEY_FRAME_COUNT);
+		float progress = (maxRadius > 0) ? Math.min(1, Math.max(0, radius / maxRadius)) : 1;
+		mColor = Color.argb((int) (mInitAlphaMask * progress), 0, 0, 0);
+		mPaint.setColor(mColor);
+		
+		if (radius <= 0) {
+			setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mBitmap, null));
+			return true;
+		}
+		
+		int w = mBitmap.getWidth();
+		int h = mBitmap.getHeight();
+		if (mSummedAreaTable == null) {
+			int[] pix = new int[w * h];
+			mBitmap.getPixels(pix, 0, w, 0, 0, w, h);
+			mSummedAreaTable = new SummedAreaTable(pix, w, h);
+			mBlurToPixels = pix;
+			mBlurToBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+		}
+		mSummedAreaTable.blur(mBlurToPixels, radius);
+		mBlurToBitmap.setPixels(mBlurToPixels, 0, w, 0, 0, w, h);
+		setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mBlurToBitmap, null));
+		return true;
 	}
 	
 	public boolean playAnimation(int timeToWait) {
+		if (mIsKeyFramesTrimmed && mIsPlayDone && mBitmap != null) {
+			// the frames were given up under memory pressure, play once they are built again
+			mPendingPlayWaitTime = timeToWait;
+			startKeyFrameGeneration();
+			return true;
+		}
 		if (!mIsPrepared || !mIsPlayDone) {
 			return false;
 		}
@@ -97,74 +508,802 @@ public class BlurredImageView extends ImageView {
 		return true;
 	}
 	
-	private void loadBlurKeyFrameImage(Bitmap b) {
-		if (b == null || b == mBitmap) {
-			return;
+	private void startKeyFrameGeneration() {
+		// a key frame of the same bitmap stays on screen while its set is built again
+		boolean isKeyFrameShown = mIsKeyFrameShown;
+		mIsPrepared = false;
+		mIsKeyFramesTrimmed = false;
+		mIsKeyFrameShown = false;
+		
+		dropKeyFrameSet();
+		KeyFrameSet set = new KeyFrameSet();
+		set.mView = this;
+		mKeyFrameSet = set;
+		mDisplayedBitmaps = set.mFrames;
+		Bitmap source = mBitmap;
+		
+		if (mIsViewportOnlyBlur) {
+			// a drawable of the image size lets ImageView compute the matrix for the new bitmap,
+			// it shows the placeholder stretched to that size if there is one
+			if (!isKeyFrameShown) {
+				setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mPlaceholder, null));
+			}
+			mKeyFrameRegion = computeVisibleSourceRect();
+		} else {
+			mKeyFrameRegion = null;
 		}
+		Rect region = mKeyFrameRegion;
 		
-		release();
+		int width = (region != null) ? region.width() : source.getWidth();
+		int height = (region != null) ? region.height() : source.getHeight();
+		KeyFrameGenerator.Plan plan = createPlan(source, width, height, mRadiusScale);
 		
-		mIsPrepared = false;
-		mBitmap = b;
+		BlurScheduler.getInstance().submit(mBlurToken, currentBlurPriority(), 
+				new KeyFrameJob(mKeyFrameGenerator, mBlurImageUtil, source, region, plan, set, mIsOffHeapKeyFrames, 
+						mIsCompressedKeyFrames));
+	}
+	
+	/**
+	 * Stop taking results from the current key frame set, the job building it may go on for
+	 * another view or the cache.
+	 */
+	private void dropKeyFrameSet() {
+		if (mKeyFrameSet != null) {
+			mKeyFrameSet.drop();
+			mKeyFrameSet = null;
+		}
+	}
+	
+	private void releaseKeyFrameHandle() {
+		if (mKeyFrameHandle != null) {
+			mKeyFrameHandle.release();
+			mKeyFrameHandle = null;
+		}
+	}
+	
+	private KeyFrameGenerator.Plan createPlan(Bitmap source, int width, int height, float radiusScale) {
+		KeyFrameGenerator.Plan plan = KeyFrameMemoryBudget.getInstance(getContext())
+				.planFor(this, width, height, !source.hasAlpha(), BlurImageUtil.KEY_FRAME_COUNT);
+		plan.engine = mBlurImageUtil.getBlurEngine();
+		plan.radiusScale = radiusScale;
+		plan.parallel = mIsParallelKeyFrames;
+		plan.reducedPrecision |= mBlurImageUtil.isReducedPrecision() && !source.hasAlpha();
+		if (mIsAdaptiveQuality) {
+			plan.tuner = AdaptiveBlurTuner.getInstance();
+			plan.tuner.tune(plan, width, height, BlurImageUtil.KEY_FRAME_COUNT);
+		}
+		return plan;
+	}
+	
+	/**
+	 * The cache key of the key frames plan builds from source. A prefetch and the view showing
+	 * the image later have to come to the same key, so both go through here.
+	 */
+	static KeyFrameCache.Key keyFrameKeyOf(Bitmap source, KeyFrameGenerator generator, BlurImageUtil util, 
+			KeyFrameGenerator.Plan plan) {
+		return KeyFrameCache.keyOf(source, generator.getRadii(BlurImageUtil.KEY_FRAME_COUNT, plan), 
+				util.getKeyFrameVariant(plan));
+	}
+	
+	/**
+	 * Decode the images next to the current one in a pager and build their key frames in the
+	 * background, below the priority of any view. Paths missing from a later call are
+	 * cancelled, so call it again whenever the page changes, with the nearest paths first. Show a
+	 * prefetched image with {@link #bindPrefetched(String)}.
+	 * 
+	 * Key frames are only prefetched when they fit the memory budget at full quality and the
+	 * view is neither in viewport-only nor off-heap mode, decoded bitmaps are capped
+	 * separately.
+	 * 
+	 * @param direction PREFETCH_FORWARD or PREFETCH_BACKWARD puts that side first,
+	 *        PREFETCH_NONE alternates between the two
+	 */
+	public void prefetch(List<String> previous, List<String> next, int direction) {
+		ArrayList<String> ordered = new ArrayList<String>();
+		if (direction == PREFETCH_FORWARD) {
+			ordered.addAll(next);
+			ordered.addAll(previous);
+		} else if (direction == PREFETCH_BACKWARD) {
+			ordered.addAll(previous);
+			ordered.addAll(next);
+		} else {
+			for (int i = 0; i < Math.max(previous.size(), next.size()); i++) {
+				if (i < next.size()) {
+					ordered.add(next.get(i));
+				}
+				if (i < previous.size()) {
+					ordered.add(previous.get(i));
+				}
+			}
+		}
 		
-		mBlurImageLoader = new AsyncTask<Bitmap, Void, Void>(){
+		KeyFramePrefetcher prefetcher = KeyFramePrefetcher.getInstance();
+		for (Object token : prefetcher.retainOnly(new HashSet<String>(ordered))) {
+			BlurScheduler.getInstance().cancel(token);
+		}
+		// the scheduler runs the newest of equal jobs first, submit the most wanted one last
+		for (int i = ordered.size() - 1; i >= 0; i--) {
+			final String path = ordered.get(i);
+			if (TextUtils.isEmpty(path) || prefetcher.isPending(path)) {
+				continue;
+			}
+			final Object token = prefetcher.tokenFor(path);
+			BlurScheduler.getInstance().submit(token, BlurScheduler.PRIORITY_PREFETCH, new Runnable() {
 
-			@Override
-			protected Void doInBackground(Bitmap... params) {
-				Bitmap b = params[0];
-				
-				Bitmap srcForBlur = b;
-				
-				if (IS_SCALE_BLURRED) {
-					int bitmapWidth = b.getWidth();
-					int bitmapHeight = b.getHeight();
-				
-					int baseSize = (bitmapWidth > bitmapHeight) ? bitmapWidth : bitmapHeight;
-					float scale = baseSize / 400.f;
-				
-					bitmapWidth = (int) (bitmapWidth / scale);
-					bitmapHeight = (int) (bitmapHeight / scale);
-				
-					srcForBlur = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-					Canvas canvas = new Canvas(srcForBlur);
-					canvas.drawBitmap(b, null, new Rect(0, 0, bitmapWidth, bitmapHeight), new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG));
-				}
-				
-				for (int i = 1; i <= mDisplayedBitmaps.length; i++) {
-					mDisplayedBitmaps[i - 1] = mBlurImageUtil.fastblur(srcForBlur, (int) mBlurImageUtil.blurRadiusAtFrame(i));
+				@Override
+				public void run() {
+					prefetchDecode(path, token);
 				}
 				
-				if (srcForBlur != null && srcForBlur != b) { 
-					srcForBlur.recycle();
+			});
+		}
+	}
+	
+	/**
+	 * The bytes of decoded bitmaps {@link #prefetch} may hold, shared by all views. A sixteenth
+	 * of the heap by default.
+	 */
+	public static void setPrefetchMemoryCap(long bytes) {
+		KeyFramePrefetcher.getInstance().setMaxBytes(bytes);
+	}
+	
+	/**
+	 * Stop all prefetching and drop what it decoded.
+	 */
+	public void cancelPrefetch() {
+		for (Object token : KeyFramePrefetcher.getInstance().retainOnly(Collections.<String>emptySet())) {
+			BlurScheduler.getInstance().cancel(token);
+		}
+	}
+	
+	/**
+	 * Show the image of path if {@link #prefetch} already decoded it. Its key frames are
+	 * ready at once, or as soon as the prefetch building them finishes.
+	 * 
+	 * @return false if path has not been decoded yet, load it the usual way then
+	 */
+	public boolean bindPrefetched(String path) {
+		Bitmap bitmap = KeyFramePrefetcher.getInstance().take(path);
+		if (bitmap == null) {
+			return false;
+		}
+		forgetSource();
+		showBitmapForAnimation(bitmap, true, PREFETCH_RADIUS_SCALE);
+		return true;
+	}
+	
+	private void prefetchDecode(final String path, final Object token) {
+		KeyFramePrefetcher prefetcher = KeyFramePrefetcher.getInstance();
+		Bitmap bitmap = ThumbnailUtils.decodeBitmapBaseOnLongSide(path, DEFAULT_DECODE_LONG_SIDE);
+		if (bitmap == null) {
+			prefetcher.forget(path, token);
+			return;
+		}
+		if (Thread.currentThread().isInterrupted() || !prefetcher.canHold((long) bitmap.getRowBytes() * bitmap.getHeight()) 
+				|| !prefetcher.put(path, bitmap)) {
+			bitmap.recycle();
+			prefetcher.forget(path, token);
+			return;
+		}
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				startPrefetchKeyFrames(path, token);
+			}
+			
+		});
+	}
+	
+	private void startPrefetchKeyFrames(String path, Object token) {
+		final Bitmap source = KeyFramePrefetcher.getInstance().peek(path);
+		if (source == null || mIsViewportOnlyBlur || mIsOffHeapKeyFrames || mIsCompressedKeyFrames
+				|| !KeyFrameMemoryBudget.getInstance(getContext()).fitsAtFullQuality(this, source.getWidth(), 
+						source.getHeight(), BlurImageUtil.KEY_FRAME_COUNT)) {
+			return;
+		}
+		// the plan the view makes once the image is bound, so the job finds these frames in the cache
+		final KeyFrameGenerator.Plan plan = createPlan(source, source.getWidth(), source.getHeight(), PREFETCH_RADIUS_SCALE);
+		BlurScheduler.getInstance().submit(token, BlurScheduler.PRIORITY_PREFETCH, new Runnable() {
+
+			@Override
+			public void run() {
+				KeyFrameCache.Key key = keyFrameKeyOf(source, mKeyFrameGenerator, mBlurImageUtil, plan);
+				try {
+					KeyFrameCache.getInstance().obtain(key, new KeyFrameCache.Loader() {
+
+						@Override
+						public Bitmap[] load() throws InterruptedException {
+							Bitmap[] result = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+							mKeyFrameGenerator.generate(source, result, plan, null);
+							return result;
+						}
+						
+					}).release();
+				} catch (InterruptedException e) {
+					Log.w(TAG, "key frame prefetch cancelled");
 				}
-				return null;
 			}
+			
+		});
+	}
+	
+	/**
+	 * Called by {@link KeyFrameMemoryBudget} under memory pressure. The frames are built again
+	 * when they are needed: by {@link #playAnimation(int)}, or when the view comes back on
+	 * screen without anything to show.
+	 * 
+	 * @param keepDisplayed keep showing the current frame, otherwise the view is left empty
+	 */
+	void trimKeyFrames(boolean keepDisplayed) {
+		if (!mIsPrepared || !mIsPlayDone) {
+			// still building or animating, the frames are in use
+			return;
+		}
+		mIsPrepared = false;
+		mIsKeyFramesTrimmed = true;
+		dropKeyFrameSet();
+		mDisplayedBitmaps = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+		mKeyFrameSlab = null;
+		mCompressedKeyFrames = null;
+		releaseSpareDecodedKeyFrame();
+		KeyFrameMemoryBudget.getInstance(getContext()).untrack(this);
+		if (!keepDisplayed) {
+			setImageDrawable(null);
+			releaseKeyFrameHandle();
+			mIsKeyFrameShown = false;
+			if (mSlabDisplayBitmap != null) {
+				mSlabDisplayBitmap.recycle();
+				mSlabDisplayBitmap = null;
+			}
+			recycleDecodedKeyFrames();
+		}
+	}
+	
+	private void regenerateTrimmedKeyFrames() {
+		if (mIsKeyFramesTrimmed && !mIsKeyFrameShown && mBitmap != null 
+				&& mIsAttached && getWindowVisibility() == VISIBLE && isShown()) {
+			startKeyFrameGeneration();
+		}
+	}
+	
+	/**
+	 * The part of the bitmap the image matrix puts inside the view, grown by a halo of what the
+	 * blur engine reaches at the largest key frame radius so the blur near its edges still sees
+	 * the right neighbours.
+	 * 
+	 * @return the rectangle in bitmap pixels, or null when the whole bitmap has to be blurred
+	 */
+	private Rect computeVisibleSourceRect() {
+		int viewWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+		int viewHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+		ScaleType scaleType = getScaleType();
+		if (viewWidth <= 0 || viewHeight <= 0 || (scaleType != ScaleType.CENTER_CROP 
+				&& scaleType != ScaleType.CENTER && scaleType != ScaleType.MATRIX)) {
+			// not laid out yet, or a scale type which always shows the whole image
+			return null;
+		}
+		
+		Matrix inverse = new Matrix();
+		if (!getImageMatrix().invert(inverse)) {
+			return null;
+		}
+		RectF visible = new RectF(0, 0, viewWidth, viewHeight);
+		inverse.mapRect(visible);
+		Rect region = new Rect();
+		visible.roundOut(region);
+		
+		int radius = (int) Math.ceil(mBlurImageUtil.blurRadiusAtFrame(BlurImageUtil.KEY_FRAME_COUNT) * mRadiusScale);
+		int halo = mBlurImageUtil.getBlurEngine().support(radius);
+		if (mIsAdaptiveQuality) {
+			// the tuner may swap in the dual filter once it knows the size of the region
+			halo = Math.max(halo, new DualFilterBlurEngine().support(radius));
+		}
+		region.inset(-halo, -halo);
+		int bitmapWidth = mBitmap.getWidth();
+		int bitmapHeight = mBitmap.getHeight();
+		if (!region.intersect(0, 0, bitmapWidth, bitmapHeight) 
+				|| (region.width() == bitmapWidth && region.height() == bitmapHeight)) {
+			return null;
+		}
+		return region;
+	}
+	
+	private void onKeyFrameReady(KeyFrameSet set, int index, Bitmap frame) {
+		if (frame == null || set != mKeyFrameSet) {
+			return;
+		}
+		// the most blurred frame is what the view shows first, no need to wait for the others
+		if (!mIsPrepared && index == mDisplayedBitmaps.length - 1) {
+			setImageDrawable(createKeyFrameDrawable(frame));
+			mIsKeyFrameShown = true;
+			dropPlaceholder();
+		}
+	}
+	
+	private void onKeyFramesReady(KeyFrameSet set) {
+		if (set != mKeyFrameSet) {
+			return;
+		}
+		mKeyFrameSlab = set.mSlab;
+		mCompressedKeyFrames = set.mCompressed;
+		// what the display bitmaps hold belongs to the previous frames
+		cancelKeyFrameDecode();
+		mDecodedKeyFrameIndices[0] = -1;
+		mDecodedKeyFrameIndices[1] = -1;
+		mIsPrepared = true;
+		if (mCompressedKeyFrames != null) {
+			// once per set, the placeholder goes away right after this and needs a replacement
+			int slot = decodeKeyFrameNow(mDisplayedBitmaps.length - 1);
+			if (slot >= 0) {
+				showDecodedKeyFrame(slot);
+			}
+		} else {
+			showKeyFrame(mDisplayedBitmaps.length - 1);
+		}
+		if (set.mHandle != null) {
+			// the frame of the previous handle is off screen now
+			releaseKeyFrameHandle();
+			mKeyFrameHandle = set.mHandle;
+			set.mHandle = null;
+		}
+		mIsKeyFrameShown = true;
+		dropPlaceholder();
+		KeyFrameMemoryBudget.getInstance(getContext()).track(this, mDisplayedBitmaps, privateKeyFrameBytes());
+		
+		if (mPendingPlayWaitTime >= 0) {
+			int waitTime = mPendingPlayWaitTime;
+			mPendingPlayWaitTime = -1;
+			playAnimation(waitTime);
+		}
+	}
+	
+	/**
+	 * Show key frame index from the frame array, the off-heap slab or the compressed frames,
+	 * nothing happens if the frame was not built. A compressed frame which is not decoded yet
+	 * is shown once its decode is done, unless another frame is shown first.
+	 */
+	private void showKeyFrame(int index) {
+		if (mKeyFrameSlab != null) {
+			if (mSlabDisplayBitmap == null || mSlabDisplayBitmap.getWidth() != mKeyFrameSlab.getWidth() 
+					|| mSlabDisplayBitmap.getHeight() != mKeyFrameSlab.getHeight()) {
+				// the old one may still be on screen, leave it to the garbage collector
+				mSlabDisplayBitmap = mKeyFrameSlab.createDisplayBitmap();
+			}
+			if (mKeyFrameSlab.copyTo(index, mSlabDisplayBitmap)) {
+				setImageDrawable(createKeyFrameDrawable(mSlabDisplayBitmap));
+			}
+		} else if (mCompressedKeyFrames != null) {
+			mWantedDecodedIndex = -1;
+			int slot = decodedSlotOf(index);
+			if (slot >= 0) {
+				showDecodedKeyFrame(slot);
+			} else if (mCompressedKeyFrames.has(index)) {
+				mWantedDecodedIndex = index;
+				prepareKeyFrame(index);
+			}
+		} else if (mDisplayedBitmaps[index] != null) {
+			setImageDrawable(createKeyFrameDrawable(mDisplayedBitmaps[index]));
+		}
+	}
+	
+	private void showDecodedKeyFrame(int slot) {
+		mShownDecodedSlot = slot;
+		setImageDrawable(createKeyFrameDrawable(mDecodedKeyFrames[slot]));
+	}
+	
+	/**
+	 * @return the display slot holding decoded key frame index, -1 if none does
+	 */
+	private int decodedSlotOf(int index) {
+		for (int slot = 0; slot < mDecodedKeyFrames.length; slot++) {
+			if (mDecodedKeyFrameIndices[slot] == index && mDecodedKeyFrames[slot] != null) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decode compressed key frame index on the decode thread into the display bitmap which is
+	 * not on screen, so the animation step showing it only swaps bitmaps. While a decode runs
+	 * the next one waits for it, both write the same spare bitmap.
+	 */
+	private void prepareKeyFrame(final int index) {
+		if (mCompressedKeyFrames == null || !mCompressedKeyFrames.has(index) || decodedSlotOf(index) >= 0 
+				|| mDecodingIndex == index || !mIsAttached) {
+			// a detached view shows nothing, and would start a decode thread nobody quits
+			return;
+		}
+		if (mDecodingSlot >= 0) {
+			mPendingDecodeIndex = index;
+			return;
+		}
+		
+		final CompressedKeyFrames frames = mCompressedKeyFrames;
+		final int slot = spareDecodedSlot(frames);
+		final Bitmap display = mDecodedKeyFrames[slot];
+		final int[] rows = mDecodeRows;
+		final int generation = ++mDecodeGeneration;
+		mDecodedKeyFrameIndices[slot] = -1;
+		mDecodingSlot = slot;
+		mDecodingIndex = index;
+		decodeHandler().post(new Runnable() {
 
 			@Override
-			protected void onPostExecute(Void result) {
-				mIsPrepared = true;
-				setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mDisplayedBitmaps[mDisplayedBitmaps.length - 1]));
+			public void run() {
+				final boolean isDecoded = frames.decodeTo(index, display, rows);
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						onKeyFrameDecoded(generation, slot, index, isDecoded);
+					}
+					
+				});
 			}
 			
-		};
-		mBlurImageLoader.execute(b);
+		});
+	}
+	
+	private Handler decodeHandler() {
+		if (mDecodeHandler == null) {
+			// above the blur pool, a late frame is seen while a slow blur is not
+			mDecodeThread = new HandlerThread("BlurredImageView decode", Process.THREAD_PRIORITY_DISPLAY);
+			mDecodeThread.start();
+			mDecodeHandler = new Handler(mDecodeThread.getLooper());
+		}
+		return mDecodeHandler;
+	}
+	
+	private void quitDecodeThread() {
+		cancelKeyFrameDecode();
+		if (mDecodeThread != null) {
+			// a decode still running finishes first, its result is ignored
+			mDecodeThread.quit();
+			mDecodeThread = null;
+			mDecodeHandler = null;
+		}
+	}
+	
+	private void onKeyFrameDecoded(int generation, int slot, int index, boolean isDecoded) {
+		if (generation != mDecodeGeneration) {
+			return;
+		}
+		mDecodingSlot = -1;
+		mDecodingIndex = -1;
+		if (isDecoded) {
+			mDecodedKeyFrameIndices[slot] = index;
+			if (mWantedDecodedIndex == index) {
+				mWantedDecodedIndex = -1;
+				showDecodedKeyFrame(slot);
+				invalidate();
+			}
+		}
+		// a frame the animation waits for goes before one it only looks ahead to
+		int next = (mWantedDecodedIndex >= 0) ? mWantedDecodedIndex : mPendingDecodeIndex;
+		mPendingDecodeIndex = -1;
+		if (next >= 0) {
+			prepareKeyFrame(next);
+		}
+	}
+	
+	/**
+	 * Decode compressed key frame index on the calling thread, for the frame shown as soon as
+	 * the key frames are ready. No background decode may be running.
+	 * 
+	 * @return the slot of the frame, -1 if it was not built
+	 */
+	private int decodeKeyFrameNow(int index) {
+		int slot = decodedSlotOf(index);
+		if (slot >= 0) {
+			return slot;
+		}
+		slot = spareDecodedSlot(mCompressedKeyFrames);
+		mDecodedKeyFrameIndices[slot] = -1;
+		if (!mCompressedKeyFrames.decodeTo(index, mDecodedKeyFrames[slot], mDecodeRows)) {
+			return -1;
+		}
+		mDecodedKeyFrameIndices[slot] = index;
+		return slot;
+	}
+	
+	/**
+	 * The slot which is not on screen, with a display bitmap and strip buffer that fit frames.
+	 */
+	private int spareDecodedSlot(CompressedKeyFrames frames) {
+		int slot = (mShownDecodedSlot == 0) ? 1 : 0;
+		Bitmap display = mDecodedKeyFrames[slot];
+		if (display == null || display.getWidth() != frames.getWidth() || display.getHeight() != frames.getHeight()) {
+			// an old one may still be on screen, leave it to the garbage collector
+			mDecodedKeyFrames[slot] = frames.createDisplayBitmap();
+		}
+		if (mDecodeRows == null || mDecodeRows.length != (CompressedKeyFrames.STRIP_ROWS + 1) * frames.getWidth()) {
+			mDecodeRows = frames.createStripBuffer();
+		}
+		return slot;
+	}
+	
+	/**
+	 * Stop the background decode. Its bitmap and strip buffer may still be written for a while,
+	 * so they are left to the garbage collector instead of being reused.
+	 */
+	private void cancelKeyFrameDecode() {
+		mDecodeGeneration++;
+		mPendingDecodeIndex = -1;
+		mWantedDecodedIndex = -1;
+		if (mDecodingSlot >= 0) {
+			if (mDecodeHandler != null) {
+				mDecodeHandler.removeCallbacksAndMessages(null);
+			}
+			mDecodedKeyFrames[mDecodingSlot] = null;
+			mDecodedKeyFrameIndices[mDecodingSlot] = -1;
+			mDecodingSlot = -1;
+			mDecodingIndex = -1;
+			mDecodeRows = null;
+		}
+	}
+	
+	/**
+	 * Hand the display bitmap which is not on screen back to {@link KeyFramePool}, it is only
+	 * needed again for the next animation.
+	 */
+	private void releaseSpareDecodedKeyFrame() {
+		cancelKeyFrameDecode();
+		int slot = (mShownDecodedSlot == 0) ? 1 : 0;
+		if (mDecodedKeyFrames[slot] != null) {
+			KeyFramePool.getInstance().put(mDecodedKeyFrames[slot]);
+			mDecodedKeyFrames[slot] = null;
+		}
+		mDecodedKeyFrameIndices[slot] = -1;
+		mDecodeRows = null;
+	}
+	
+	private void recycleDecodedKeyFrames() {
+		cancelKeyFrameDecode();
+		for (int slot = 0; slot < mDecodedKeyFrames.length; slot++) {
+			if (mDecodedKeyFrames[slot] != null) {
+				mDecodedKeyFrames[slot].recycle();
+				mDecodedKeyFrames[slot] = null;
+			}
+			mDecodedKeyFrameIndices[slot] = -1;
+		}
+		mShownDecodedSlot = -1;
+		mDecodeRows = null;
+	}
+	
+	/**
+	 * The memory of key frames this view keeps outside of mDisplayedBitmaps: the off-heap slab
+	 * or the compressed frames, and the bitmaps their frames are shown in.
+	 */
+	private long privateKeyFrameBytes() {
+		long bytes = 0;
+		if (mKeyFrameSlab != null) {
+			bytes += mKeyFrameSlab.getByteCount();
+			bytes += bitmapBytes(mSlabDisplayBitmap);
+		}
+		if (mCompressedKeyFrames != null) {
+			bytes += mCompressedKeyFrames.getByteCount();
+			for (Bitmap display : mDecodedKeyFrames) {
+				bytes += bitmapBytes(display);
+			}
+		}
+		return bytes;
+	}
+	
+	private static long bitmapBytes(Bitmap bitmap) {
+		return (bitmap != null) ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
+	}
+	
+	private BlurredDisplayDrawable createKeyFrameDrawable(Bitmap frame) {
+		return new BlurredDisplayDrawable(getContext().getResources(), frame, mKeyFrameRegion);
+	}
+	
+	private int currentBlurPriority() {
+		if (!mIsAttached) {
+			return BlurScheduler.PRIORITY_DETACHED;
+		}
+		return (getWindowVisibility() == VISIBLE && isShown()) ? BlurScheduler.PRIORITY_VISIBLE : BlurScheduler.PRIORITY_ATTACHED;
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		mIsAttached = true;
+		BlurScheduler.getInstance().setPriority(mBlurToken, currentBlurPriority());
+		regenerateTrimmedKeyFrames();
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		mIsAttached = false;
+		quitDecodeThread();
+		BlurScheduler.getInstance().setPriority(mBlurToken, currentBlurPriority());
+	}
+	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if ((mSourcePath != null || mSourceUri != null) && (mBitmap == null || isDecodedSourceTooSmall(w, h))) {
+			requestSourceDecode();
+			return;
+		}
+		if (mIsViewportOnlyBlur && mBitmap != null) {
+			// ImageView updates its matrix right after this, blur the new visible part once it has
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (mBitmap != null) {
+						startKeyFrameGeneration();
+					}
+				}
+				
+			});
+		}
+	}
+	
+	/**
+	 * Whether a view of w x h shows the source larger than it was decoded. A view that only got
+	 * bigger than a decode already at the file's full size needs nothing new, since
+	 * {@link #displayedLongSide(int, int, int, int, ScaleType)} never goes above the file.
+	 */
+	private boolean isDecodedSourceTooSmall(int w, int h) {
+		if (mDecodedLongSide <= 0) {
+			// decoded before the sizes were known, keep what is shown
+			return false;
+		}
+		int viewWidth = w - getPaddingLeft() - getPaddingRight();
+		int viewHeight = h - getPaddingTop() - getPaddingBottom();
+		if (viewWidth <= 0 || viewHeight <= 0) {
+			return false;
+		}
+		int longSide = displayedLongSide(mSourceWidth, mSourceHeight, viewWidth, viewHeight, getScaleType());
+		return longSide > mDecodedLongSide && mDecodedLongSide < Math.max(mSourceWidth, mSourceHeight);
+	}
+	
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		BlurScheduler.getInstance().setPriority(mBlurToken, currentBlurPriority());
+		regenerateTrimmedKeyFrames();
+	}
+	
+	@Override
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		super.onVisibilityChanged(changedView, visibility);
+		if (mBlurImageUtil != null) {
+			BlurScheduler.getInstance().setPriority(mBlurToken, currentBlurPriority());
+			regenerateTrimmedKeyFrames();
+		}
 	}
 	
 	private void release() {
-		if (mBitmap != null) {
+		BlurScheduler.getInstance().cancel(mBlurToken);
+		
+		if (mBitmap != null && mIsBitmapOwned) {
 			mBitmap.recycle();
 		}
+		mBitmap = null;
+		mIsBitmapOwned = false;
 		
-		if (mDisplayedBitmaps != null) {
-			for (Bitmap bitmap : mDisplayedBitmaps) {
-				if (bitmap != null) {
-					bitmap.recycle();
-				}
-			}
+		mSummedAreaTable = null;
+		mBlurToPixels = null;
+		if (mBlurToBitmap != null) {
+			mBlurToBitmap.recycle();
+			mBlurToBitmap = null;
 		}
 		
-		if (mBlurImageLoader != null) {
-			mBlurImageLoader.cancel(true);
+		// other views may show the same key frames, they are only handed back to the pool
+		// when the last reference goes
+		dropKeyFrameSet();
+		releaseKeyFrameHandle();
+		mDisplayedBitmaps = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+		mIsKeyFramesTrimmed = false;
+		mIsKeyFrameShown = false;
+		mPendingPlayWaitTime = -1;
+		mKeyFrameSlab = null;
+		if (mSlabDisplayBitmap != null) {
+			mSlabDisplayBitmap.recycle();
+			mSlabDisplayBitmap = null;
+		}
+		mCompressedKeyFrames = null;
+		recycleDecodedKeyFrames();
+		KeyFrameMemoryBudget.getInstance(getContext()).untrack(this);
+	}
+	
+	/**
+	 * Hand the image and its key frames, built or still building, over to
+	 * {@link RetainedKeyFrames}. Nothing is recycled, this view is left empty.
+	 */
+	RetainedKeyFrames.State retainKeyFrames() {
+		RetainedKeyFrames.State state = new RetainedKeyFrames.State();
+		state.mBitmap = mBitmap;
+		state.mIsBitmapOwned = mIsBitmapOwned;
+		state.mKeyFrameHandle = mKeyFrameHandle;
+		state.mSourcePath = mSourcePath;
+		state.mSourceUri = mSourceUri;
+		state.mSourceWidth = mSourceWidth;
+		state.mSourceHeight = mSourceHeight;
+		state.mDecodedLongSide = mDecodedLongSide;
+		state.mRadiusScale = mRadiusScale;
+		state.mRegion = mKeyFrameRegion;
+		state.mKeyFrameSet = mKeyFrameSet;
+		state.mBlurToken = mBlurToken;
+		state.mPlaceholder = mPlaceholder;
+		state.mIsTrimmed = mIsKeyFramesTrimmed;
+		
+		mHandler.removeCallbacksAndMessages(null);
+		forgetSource();
+		// detached, not dropped: the set keeps its reference for the view restoring it
+		if (mKeyFrameSet != null) {
+			mKeyFrameSet.mView = null;
+			mKeyFrameSet = null;
+		}
+		mBlurToken = new Object();
+		mBitmap = null;
+		mIsBitmapOwned = false;
+		mKeyFrameHandle = null;
+		mPlaceholder = null;
+		mPlaceholderGeneration++;
+		mDisplayedBitmaps = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+		mKeyFrameSlab = null;
+		mSlabDisplayBitmap = null;
+		mCompressedKeyFrames = null;
+		cancelKeyFrameDecode();
+		mDecodedKeyFrames = new Bitmap[2];
+		mDecodedKeyFrameIndices[0] = -1;
+		mDecodedKeyFrameIndices[1] = -1;
+		mShownDecodedSlot = -1;
+		mIsPrepared = false;
+		mIsPlayDone = true;
+		KeyFrameMemoryBudget.getInstance(getContext()).untrack(this);
+		return state;
+	}
+	
+	/**
+	 * Take over what another view gave to {@link RetainedKeyFrames}: finished key frames are
+	 * shown at once, a job still running delivers to this view from now on.
+	 */
+	void restoreKeyFrames(RetainedKeyFrames.State state) {
+		release();
+		mBitmap = state.mBitmap;
+		mIsBitmapOwned = state.mIsBitmapOwned;
+		mKeyFrameHandle = state.mKeyFrameHandle;
+		forgetSource();
+		mSourcePath = state.mSourcePath;
+		mSourceUri = state.mSourceUri;
+		mSourceWidth = state.mSourceWidth;
+		mSourceHeight = state.mSourceHeight;
+		mDecodedLongSide = state.mDecodedLongSide;
+		mRadiusScale = state.mRadiusScale;
+		mKeyFrameRegion = state.mRegion;
+		mBlurToken = state.mBlurToken;
+		mPlaceholder = state.mPlaceholder;
+		mIsKeyFramesTrimmed = state.mIsTrimmed;
+		BlurScheduler.getInstance().setPriority(mBlurToken, currentBlurPriority());
+		
+		KeyFrameSet set = state.mKeyFrameSet;
+		if (set != null) {
+			set.mView = this;
+			mKeyFrameSet = set;
+			mDisplayedBitmaps = set.mFrames;
+			if (set.mIsDone) {
+				onKeyFramesReady(set);
+				return;
+			}
+			if (set.mPreview != null) {
+				onKeyFrameReady(set, mDisplayedBitmaps.length - 1, set.mPreview);
+				return;
+			}
+		}
+		if (mPlaceholder != null) {
+			setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mPlaceholder, null));
+		}
+		if (mBitmap == null) {
+			// the source was not decoded yet, decode it for this view's size
+			requestSourceDecode();
 		}
 	}
 	
@@ -178,15 +1317,16 @@ public class BlurredImageView extends ImageView {
 		if (mIndex >= 0) {
 			mColor = Color.argb(mInitAlphaMask - mProgressAlpha * (BlurImageUtil.KEY_FRAME_COUNT - mIndex), 0, 0, 0);
 			mPaint.setColor(mColor);
-			if (mDisplayedBitmaps[mIndex] != null) {
-				setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mDisplayedBitmaps[mIndex]));
-			}
+			showKeyFrame(mIndex);
 			invalidate();
 			mHandler.sendEmptyMessageDelayed(100, 66);
+			prepareKeyFrame(mIndex - 1);
 		} else {
 			mColor = Color.argb(mInitAlphaMask - mInitAlphaMask, 0, 0, 0);
 			mPaint.setColor(mColor);
-			setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mBitmap));
+			// a key frame still decoding must not replace the image
+			mWantedDecodedIndex = -1;
+			setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mBitmap, null));
 			invalidate();
 			mHandler.sendEmptyMessageDelayed(200, mWaitTime);
 			mIndex = 0;
@@ -197,33 +1337,264 @@ public class BlurredImageView extends ImageView {
 		if (mIndex < mDisplayedBitmaps.length) {
 			mColor = Color.argb(mProgressAlpha * mIndex, 0, 0, 0);
 			mPaint.setColor(mColor);
-			if (mDisplayedBitmaps[mIndex] != null) {
-				setImageDrawable(new BlurredDisplayDrawable(getContext().getResources(), mDisplayedBitmaps[mIndex]));
-			}
+			showKeyFrame(mIndex);
 			invalidate();
 			mHandler.sendEmptyMessageDelayed(200, 66);
 			mIndex++;
+			prepareKeyFrame(mIndex);
 		} else {
 			mColor = Color.argb(mInitAlphaMask, 0, 0, 0);
 			mIsPlayDone = true;
+			releaseSpareDecodedKeyFrame();
 			invalidate();
 		}
 	}
 	
+	/**
+	 * One build of key frames, and its frames once it is done. The job building it only knows
+	 * the set, never the view, so a set can outlive its view and be taken over by another one.
+	 */
+	static class KeyFrameSet {
+		final Bitmap[] mFrames = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+		/* the most blurred frame, known before the others */
+		Bitmap mPreview;
+		KeyFrameSlab mSlab;
+		CompressedKeyFrames mCompressed;
+		boolean mIsDone;
+		/* the reference of the finished frames until a view takes it over */
+		KeyFrameHandle mHandle;
+		/* where the results go, null while nobody takes them; UI thread only */
+		BlurredImageView mView;
+		private boolean mIsDropped;
+		
+		void onKeyFrame(int index, Bitmap frame) {
+			if (index == mFrames.length - 1) {
+				mPreview = frame;
+			}
+			if (mView != null) {
+				mView.onKeyFrameReady(this, index, frame);
+			}
+		}
+		
+		void onDone(KeyFrameHandle handle) {
+			mIsDone = true;
+			mHandle = handle;
+			if (mView != null) {
+				mView.onKeyFramesReady(this);
+			} else if (mIsDropped) {
+				drop();
+			}
+		}
+		
+		/**
+		 * Nobody will take the results, unlike a set waiting in {@link RetainedKeyFrames}.
+		 */
+		void drop() {
+			mView = null;
+			mIsDropped = true;
+			if (mHandle != null) {
+				mHandle.release();
+				mHandle = null;
+			}
+		}
+	}
+	
+	/**
+	 * Builds a {@link KeyFrameSet} on a {@link BlurScheduler} thread and hands the results to
+	 * the set on the UI thread.
+	 */
+	private static class KeyFrameJob implements Runnable {
+		private final KeyFrameGenerator mGenerator;
+		private final BlurImageUtil mBlurImageUtil;
+		private final Bitmap mSource;
+		private final Rect mRegion;
+		private final KeyFrameGenerator.Plan mPlan;
+		private final KeyFrameSet mSet;
+		private final boolean mIsOffHeap;
+		private final boolean mIsCompressed;
+		
+		KeyFrameJob(KeyFrameGenerator generator, BlurImageUtil util, Bitmap source, Rect region, 
+				KeyFrameGenerator.Plan plan, KeyFrameSet set, boolean offHeap, boolean compressed) {
+			mGenerator = generator;
+			mBlurImageUtil = util;
+			mSource = source;
+			mRegion = region;
+			mPlan = plan;
+			mSet = set;
+			mIsOffHeap = offHeap;
+			mIsCompressed = compressed;
+		}
+		
+		@Override
+		public void run() {
+			if (mIsOffHeap || mIsCompressed) {
+				generatePrivateKeyFrames();
+			} else {
+				generateKeyFrames();
+			}
+		}
+		
+		/**
+		 * The bitmap the key frames are blurred from: the visible region of the source, scaled
+		 * down as the plan asks. Recycle it when done unless it is the source itself.
+		 */
+		private Bitmap prepareBlurSource() {
+			Bitmap b = mSource;
+			Bitmap srcForBlur = b;
+			
+			if (mRegion != null) {
+				srcForBlur = Bitmap.createBitmap(b, mRegion.left, mRegion.top, mRegion.width(), mRegion.height());
+			} else if (IS_SCALE_BLURRED) {
+				int bitmapWidth = b.getWidth();
+				int bitmapHeight = b.getHeight();
+			
+				int baseSize = (bitmapWidth > bitmapHeight) ? bitmapWidth : bitmapHeight;
+				float scale = baseSize / 400.f;
+			
+				bitmapWidth = (int) (bitmapWidth / scale);
+				bitmapHeight = (int) (bitmapHeight / scale);
+			
+				srcForBlur = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+				Canvas canvas = new Canvas(srcForBlur);
+				canvas.drawBitmap(b, null, new Rect(0, 0, bitmapWidth, bitmapHeight), new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG));
+			}
+			
+			if (mPlan.downscale > 1) {
+				Bitmap scaled = Bitmap.createScaledBitmap(srcForBlur, Math.max(1, srcForBlur.getWidth() / mPlan.downscale), 
+						Math.max(1, srcForBlur.getHeight() / mPlan.downscale), true);
+				if (srcForBlur != b) {
+					srcForBlur.recycle();
+				}
+				srcForBlur = scaled;
+			}
+			
+			return srcForBlur;
+		}
+		
+		/**
+		 * Private variant of {@link #generateKeyFrames}: the frames are copied into a
+		 * {@link KeyFrameSlab} or compressed into {@link CompressedKeyFrames}, and the bitmaps
+		 * go back to the pool right away.
+		 */
+		private void generatePrivateKeyFrames() {
+			Bitmap srcForBlur = prepareBlurSource();
+			Bitmap[] result = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+			
+			try {
+				mGenerator.generate(srcForBlur, result, mPlan, null);
+				final KeyFrameSlab slab = mIsCompressed ? null : KeyFrameSlab.of(result);
+				final CompressedKeyFrames compressed = mIsCompressed ? CompressedKeyFrames.of(result) : null;
+				sMainHandler.post(new Runnable() {
+	
+					@Override
+					public void run() {
+						mSet.mSlab = slab;
+						mSet.mCompressed = compressed;
+						mSet.onDone(null);
+					}
+					
+				});
+			} catch (InterruptedException e) {
+				Log.w(TAG, "key frame generation cancelled");
+			} finally {
+				KeyFramePool pool = KeyFramePool.getInstance();
+				for (Bitmap frame : result) {
+					if (frame != null) {
+						pool.put(frame);
+					}
+				}
+				if (srcForBlur != mSource) { 
+					srcForBlur.recycle();
+				}
+			}
+		}
+		
+		/**
+		 * Shared variant: the frames come from {@link KeyFrameCache}, built by this job only if
+		 * no other view has them, and the set gets a reference of its own.
+		 */
+		private void generateKeyFrames() {
+			Bitmap srcForBlur = prepareBlurSource();
+			
+			try {
+				final Bitmap source = srcForBlur;
+				Bitmap[] frames = mSet.mFrames;
+				KeyFrameCache.Key key = keyFrameKeyOf(source, mGenerator, mBlurImageUtil, mPlan);
+				final KeyFrameHandle shared = KeyFrameCache.getInstance().obtain(key, new KeyFrameCache.Loader() {
+	
+					@Override
+					public Bitmap[] load() throws InterruptedException {
+						Bitmap[] result = new Bitmap[BlurImageUtil.KEY_FRAME_COUNT];
+						mGenerator.generate(source, result, mPlan, 
+								new KeyFrameGenerator.OnKeyFrameListener() {
+							
+							@Override
+							public void onKeyFrame(final int index, final Bitmap frame) {
+								sMainHandler.post(new Runnable() {
+	
+									@Override
+									public void run() {
+										mSet.onKeyFrame(index, frame);
+									}
+									
+								});
+							}
+							
+						});
+						return result;
+					}
+					
+				});
+				System.arraycopy(shared.getFrames(), 0, frames, 0, frames.length);
+				sMainHandler.post(new Runnable() {
+	
+					@Override
+					public void run() {
+						mSet.onDone(shared);
+					}
+					
+				});
+			} catch (InterruptedException e) {
+				Log.w(TAG, "key frame generation cancelled");
+			} finally {
+				if (srcForBlur != null && srcForBlur != mSource) { 
+					srcForBlur.recycle();
+				}
+			}
+		}
+	}
+	
 	class BlurredDisplayDrawable extends BitmapDrawable {
 		
 		private Bitmap mDisplayedBitmap;
+		private Rect mRegion;
+		private RectF mRegionBounds = new RectF();
 		
-		BlurredDisplayDrawable(Resources res, Bitmap b) {
+		/**
+		 * @param region where b sits inside the image when only part of it was blurred, or null
+		 */
+		BlurredDisplayDrawable(Resources res, Bitmap b, Rect region) {
 			super(res, b);
 			
 			mDisplayedBitmap = b;
+			mRegion = region;
 		}
 		
 		@Override
 		public void draw(Canvas canvas) {
-			super.draw(canvas);
+			if (mDisplayedBitmap == null) {
+				return;
+			}
 			Rect rect = getBounds();
+			if (mRegion == null) {
+				super.draw(canvas);
+			} else {
+				float scaleX = rect.width() / (float) getIntrinsicWidth();
+				float scaleY = rect.height() / (float) getIntrinsicHeight();
+				mRegionBounds.set(rect.left + mRegion.left * scaleX, rect.top + mRegion.top * scaleY, 
+						rect.left + mRegion.right * scaleX, rect.top + mRegion.bottom * scaleY);
+				canvas.drawBitmap(mDisplayedBitmap, null, mRegionBounds, getPaint());
+			}
 			canvas.drawRect(rect, mPaint);
 		}
 
@@ -239,7 +1610,7 @@ public class BlurredImageView extends ImageView {
 		
 	}
 
-	public class BlurImageUtil {
+	public static class BlurImageUtil {
 		
 		private Context mContext;
 		public static final int KEY_FRAME_COUNT = 5;
@@ -247,239 +1618,153 @@ public class BlurredImageView extends ImageView {
 		private int mBlurredSampleSize  = 4;
 		public static final int MAX_SUPPORTED_BLUR_PIXELS = 25;
 		private int mMaxPrescaledBlurPixels;
+		private boolean mReducedPrecision;
+		private BlurEngine mBlurEngine = new StackBlurEngine();
 		
 		public Bitmap fastblur(Bitmap sentBitmap, int radius) {
-
-	        // Stack Blur v1.0 from
-	        // http://www.quasimondo.com/StackBlurForCanvas/StackBlurDemo.html
-	        //
-	        // Java Author: Mario Klingemann <mario at quasimondo.com>
-	        // http://incubator.quasimondo.com
-	        // created Feburary 29, 2004
-	        // Android port : Yahel Bouaziz <yahel at kayenko.com>
-	        // http://www.kayenko.com
-	        // ported april 5th, 2012
-
-	        // This is a compromise between Gaussian Blur and Box blur
-	        // It creates much better looking blurs than Box Blur, but is
-	        // 7x faster than my Gaussian Blur implementation.
-	        //
-	        // I called it Stack Blur because this describes best how this
-	        // filter works internally: it creates a kind of moving stack
-	        // of colors whilst scanning through the image. Thereby it
-	        // just has to add one new block of color to the right side
-	        // of the stack and remove the leftmost color. The remaining
-	        // colors on the topmost layer of the stack are either added on
-	        // or reduced by one, depending on if they are on the right or
-	        // on the left side of the stack.
-	        //
-	        // If you are using this algorithm in your code please add
-	        // the following line:
-	        //
-	        // Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
-
-	        Bitmap bitmap = sentBitmap.copy(sentBitmap.getConfig(), true);
-
+			return fastblur(sentBitmap, radius, mReducedPrecision, mBlurEngine);
+		}
+		
+		public Bitmap fastblur(Bitmap sentBitmap, int radius, boolean reducedPrecision, BlurEngine engine) {
 	        if (radius < 1) {
 	            return (null);
 	        }
 
-	        int w = bitmap.getWidth();
-	        int h = bitmap.getHeight();
+	        int w = sentBitmap.getWidth();
+	        int h = sentBitmap.getHeight();
 
 	        int[] pix = new int[w * h];
 	        Log.e("pix", w + " " + h + " " + pix.length);
-	        bitmap.getPixels(pix, 0, w, 0, 0, w, h);
-
-	        int wm = w - 1;
-	        int hm = h - 1;
-	        int wh = w * h;
-	        int div = radius + radius + 1;
-
-	        int r[] = new int[wh];
-	        int g[] = new int[wh];
-	        int b[] = new int[wh];
-	        int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
-	        int vmin[] = new int[Math.max(w, h)];
-
-	        int divsum = (div + 1) >> 1;
-	        divsum *= divsum;
-	        int dv[] = new int[256 * divsum];
-	        for (i = 0; i < 256 * divsum; i++) {
-	            dv[i] = (i / divsum);
-	        }
-
-	        yw = yi = 0;
-
-	        int[][] stack = new int[div][3];
-	        int stackpointer;
-	        int stackstart;
-	        int[] sir;
-	        int rbs;
-	        int r1 = radius + 1;
-	        int routsum, goutsum, boutsum;
-	        int rinsum, ginsum, binsum;
-
-	        for (y = 0; y < h; y++) {
-	            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-	            for (i = -radius; i <= radius; i++) {
-	                p = pix[yi + Math.min(wm, Math.max(i, 0))];
-	                sir = stack[i + radius];
-	                sir[0] = (p & 0xff0000) >> 16;
-	                sir[1] = (p & 0x00ff00) >> 8;
-	                sir[2] = (p & 0x0000ff);
-	                rbs = r1 - Math.abs(i);
-	                rsum += sir[0] * rbs;
-	                gsum += sir[1] * rbs;
-	                bsum += sir[2] * rbs;
-	                if (i > 0) {
-	                    rinsum += sir[0];
-	                    ginsum += sir[1];
-	                    binsum += sir[2];
-	                } else {
-	                    routsum += sir[0];
-	                    goutsum += sir[1];
-	                    boutsum += sir[2];
-	                }
-	            }
-	            stackpointer = radius;
-
-	            for (x = 0; x < w; x++) {
-
-	                r[yi] = dv[rsum];
-	                g[yi] = dv[gsum];
-	                b[yi] = dv[bsum];
-
-	                rsum -= routsum;
-	                gsum -= goutsum;
-	                bsum -= boutsum;
-
-	                stackstart = stackpointer - radius + div;
-	                sir = stack[stackstart % div];
-
-	                routsum -= sir[0];
-	                goutsum -= sir[1];
-	                boutsum -= sir[2];
-
-	                if (y == 0) {
-	                    vmin[x] = Math.min(x + radius + 1, wm);
-	                }
-	                p = pix[yw + vmin[x]];
-
-	                sir[0] = (p & 0xff0000) >> 16;
-	                sir[1] = (p & 0x00ff00) >> 8;
-	                sir[2] = (p & 0x0000ff);
-
-	                rinsum += sir[0];
-	                ginsum += sir[1];
-	                binsum += sir[2];
-
-	                rsum += rinsum;
-	                gsum += ginsum;
-	                bsum += binsum;
+	        sentBitmap.getPixels(pix, 0, w, 0, 0, w, h);
 
-	                stackpointer = (stackpointer + 1) % div;
-	                sir = stack[(stackpointer) % div];
-
-	                routsum += sir[0];
-	                goutsum += sir[1];
-	                boutsum += sir[2];
-
-	                rinsum -= sir[0];
-	                ginsum -= sir[1];
-	                binsum -= sir[2];
-
-	                yi++;
-	            }
-	            yw += w;
-	        }
-	        for (x = 0; x < w; x++) {
-	            rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-	            yp = -radius * w;
-	            for (i = -radius; i <= radius; i++) {
-	                yi = Math.max(0, yp) + x;
-
-	                sir = stack[i + radius];
-
-	                sir[0] = r[yi];
-	                sir[1] = g[yi];
-	                sir[2] = b[yi];
-
-	                rbs = r1 - Math.abs(i);
-
-	                rsum += r[yi] * rbs;
-	                gsum += g[yi] * rbs;
-	                bsum += b[yi] * rbs;
-
-	                if (i > 0) {
-	                    rinsum += sir[0];
-	                    ginsum += sir[1];
-	                    binsum += sir[2];
-	                } else {
-	                    routsum += sir[0];
-	                    goutsum += sir[1];
-	                    boutsum += sir[2];
-	                }
-
-	                if (i < hm) {
-	                    yp += w;
-	                }
-	            }
-	            yi = x;
-	            stackpointer = radius;
-	            for (y = 0; y < h; y++) {
-	                // Preserve alpha channel: ( 0xff000000 & pix[yi] )
-	                pix[yi] = ( 0xff000000 & pix[yi] ) | ( dv[rsum] << 16 ) | ( dv[gsum] << 8 ) | dv[bsum];
-
-	                rsum -= routsum;
-	                gsum -= goutsum;
-	                bsum -= boutsum;
-
-	                stackstart = stackpointer - radius + div;
-	                sir = stack[stackstart % div];
-
-	                routsum -= sir[0];
-	                goutsum -= sir[1];
-	                boutsum -= sir[2];
-
-	                if (x == 0) {
-	                    vmin[y] = Math.min(y + r1, hm) * w;
-	                }
-	                p = x + vmin[y];
-
-	                sir[0] = r[p];
-	                sir[1] = g[p];
-	                sir[2] = b[p];
-
-	                rinsum += sir[0];
-	                ginsum += sir[1];
-	                binsum += sir[2];
-
-	                rsum += rinsum;
-	                gsum += ginsum;
-	                bsum += binsum;
-
-	                stackpointer = (stackpointer + 1) % div;
-	                sir = stack[stackpointer];
-
-	                routsum += sir[0];
-	                goutsum += sir[1];
-	                boutsum += sir[2];
-
-	                rinsum -= sir[0];
-	                ginsum -= sir[1];
-	                binsum -= sir[2];
-
-	                yi += w;
-	            }
-	        }
+	        engine.blur(pix, w, h, radius);
 
 	        Log.e("pix", w + " " + h + " " + pix.length);
-	        bitmap.setPixels(pix, 0, w, 0, 0, w, h);
-
-	        return (bitmap);
+	        return createKeyFrameBitmap(sentBitmap, pix, w, h, reducedPrecision);
 	    }
 		
+		/**
+		 * Update a previous blur of source after the dirty rectangles of source changed. Only
+		 * the rectangles grown by the radius are recomputed and the result is the same as
+		 * fastblur(source, radius) would give. Engines other than StackBlur get a full re-blur.
+		 * 
+		 * @param previous earlier output of fastblur with the same radius, it is never written:
+		 *        key frames are shared through KeyFrameCache and reused through KeyFramePool, so
+		 *        the result always goes into a bitmap of its own
+		 */
+		public Bitmap reblur(Bitmap source, Bitmap previous, int radius, Rect... dirty) {
+			int w = source.getWidth();
+			int h = source.getHeight();
+			if (!(mBlurEngine instanceof StackBlurEngine) || previous == null || previous.isRecycled()
+					|| previous.getWidth() != w || previous.getHeight() != h) {
+				return fastblur(source, radius);
+			}
+			if (radius < 1) {
+				return (null);
+			}
+			
+			Bitmap bitmap = copyForReblur(previous);
+			boolean dither = bitmap.getConfig() == Bitmap.Config.RGB_565;
+			for (Rect rect : dirty) {
+				DirtyRegionBlur.Tile tile = DirtyRegionBlur.tileFor(w, h, radius, rect.left, rect.top, rect.right, rect.bottom);
+				if (tile == null) {
+					continue;
+				}
+				int tw = tile.readWidth();
+				int th = tile.readHeight();
+				int[] pix = new int[tw * th];
+				source.getPixels(pix, 0, tw, tile.readLeft, tile.readTop, tw, th);
+				mBlurEngine.blur(pix, tw, th, radius);
+				if (dither) {
+					ditherTo565(pix, tw, th, tile.readLeft, tile.readTop);
+				}
+				int offset = (tile.writeTop - tile.readTop) * tw + (tile.writeLeft - tile.readLeft);
+				bitmap.setPixels(pix, offset, tw, tile.writeLeft, tile.writeTop, tile.writeWidth(), tile.writeHeight());
+			}
+			return bitmap;
+		}
+		
+		/**
+		 * A mutable copy of previous, in a pooled bitmap when one of the same size is free.
+		 */
+		private Bitmap copyForReblur(Bitmap previous) {
+			Bitmap.Config config = (previous.getConfig() != null) ? previous.getConfig() : Bitmap.Config.ARGB_8888;
+			Bitmap bitmap = KeyFramePool.getInstance().get(previous.getWidth(), previous.getHeight(), config);
+			if (bitmap == null) {
+				return previous.copy(config, true);
+			}
+			int w = previous.getWidth();
+			int[] row = new int[w];
+			for (int y = 0; y < previous.getHeight(); y++) {
+				previous.getPixels(row, 0, w, 0, y, w, 1);
+				bitmap.setPixels(row, 0, w, 0, y, w, 1);
+			}
+			return bitmap;
+		}
+		
+		/**
+		 * Create the bitmap which holds a blurred key frame. Opaque sources are stored as RGB_565
+		 * when reduced precision is enabled, dithered so the smooth gradients do not band.
+		 */
+		private Bitmap createKeyFrameBitmap(Bitmap source, int[] pix, int w, int h, boolean reducedPrecision) {
+			Bitmap.Config config = source.getConfig();
+			if (reducedPrecision && !source.hasAlpha()) {
+				config = Bitmap.Config.RGB_565;
+				ditherTo565(pix, w, h, 0, 0);
+			} else if (config == null) {
+				config = Bitmap.Config.ARGB_8888;
+			}
+			// mutable so KeyFramePool can reuse it once the last KeyFrameHandle on it is released
+			Bitmap bitmap = KeyFramePool.getInstance().get(w, h, config);
+			if (bitmap == null) {
+				bitmap = Bitmap.createBitmap(w, h, config);
+			}
+			bitmap.setPixels(pix, 0, w, 0, 0, w, h);
+			return bitmap;
+		}
+		
+		/**
+		 * Describes everything besides the radius schedule which changes the key frames.
+		 */
+		public String getKeyFrameVariant(KeyFrameGenerator.Plan plan) {
+			return plan.engine.getClass().getName() + "/" + plan.describe();
+		}
+		
+		/**
+		 * Ordered (4x4 Bayer) dithering. RGB_565 keeps the top 5/6/5 bits of each channel, so the
+		 * threshold is added below the bits that will be dropped.
+		 */
+		private void ditherTo565(int[] pix, int w, int h, int offsetX, int offsetY) {
+			int i = 0;
+			for (int y = 0; y < h; y++) {
+				int row = ((y + offsetY) & 3) << 2;
+				for (int x = 0; x < w; x++, i++) {
+					int t = BAYER_4X4[row + ((x + offsetX) & 3)];
+					int p = pix[i];
+					int r = Math.min(255, ((p >> 16) & 0xff) + (t >> 1));
+					int g = Math.min(255, ((p >> 8) & 0xff) + (t >> 2));
+					int b = Math.min(255, (p & 0xff) + (t >> 1));
+					pix[i] = (p & 0xff000000) | (r << 16) | (g << 8) | b;
+				}
+			}
+		}
+		
+		public void setBlurEngine(BlurEngine engine) {
+			mBlurEngine = (engine != null) ? engine : new StackBlurEngine();
+		}
+		
+		public BlurEngine getBlurEngine() {
+			return mBlurEngine;
+		}
+		
+		public void setReducedPrecision(boolean reduced) {
+			mReducedPrecision = reduced;
+		}
+		
+		public boolean isReducedPrecision() {
+			return mReducedPrecision;
+		}
+		
 		public void recomputeMaxPreScaleBlurPixels() {
 			float maxBlurRaiusOverScreenHeight = 400 * 0.0001f;
 			DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
@@ -491,7 +1776,9 @@ public class BlurredImageView extends ImageView {
 		}
 		
 		public BlurImageUtil(Context context) {
-			mContext = context;
+			// not the Activity, key frame jobs keep the util beyond the life of the view
+			Context application = context.getApplicationContext();
+			mContext = (application != null) ? application : context;
 		}
 		
 		public float blurRadiusAtFrame(float f) {
@@ -0,0 +1,316 @@
+package com.silencecork.blurimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * Key frames kept losslessly compressed on the heap. Blurred frames are so smooth that every
+ * channel of a pixel is within a few steps of left + up - upper left, and the residuals are bit
+ * packed in blocks of {@link #BLOCK} pixels with one width per channel and block. No entropy
+ * coding, and the prediction works on all four channels of a pixel in one int, so a frame
+ * decodes in a single pass with a handful of integer operations per pixel.
+ * 
+ * Every frame is coded on its own, so any frame can be decoded without the others.
+ */
+class CompressedKeyFrames {
+	
+	static final int BLOCK = 16;
+	static final int STRIP_ROWS = 16;
+	
+	private final int mWidth;
+	private final int mHeight;
+	private final Bitmap.Config mConfig;
+	private final byte[][] mFrames;
+	
+	/**
+	 * Compress frames, the bitmaps are left to the caller. Null entries stay empty.
+	 */
+	static CompressedKeyFrames of(Bitmap[] frames) {
+		Bitmap first = null;
+		for (Bitmap frame : frames) {
+			if (frame != null) {
+				first = frame;
+				break;
+			}
+		}
+		if (first == null) {
+			return null;
+		}
+		int w = first.getWidth();
+		int h = first.getHeight();
+		CompressedKeyFrames compressed = new CompressedKeyFrames(w, h, first.getConfig(), frames.length);
+		int[] pix = new int[w * h];
+		for (int i = 0; i < frames.length; i++) {
+			if (frames[i] != null) {
+				frames[i].getPixels(pix, 0, w, 0, 0, w, h);
+				compressed.mFrames[i] = encode(pix, w, h);
+			}
+		}
+		return compressed;
+	}
+	
+	private CompressedKeyFrames(int width, int height, Bitmap.Config config, int count) {
+		mWidth = width;
+		mHeight = height;
+		mConfig = (config != null) ? config : Bitmap.Config.ARGB_8888;
+		mFrames = new byte[count][];
+	}
+	
+	boolean has(int index) {
+		return index >= 0 && index < mFrames.length && mFrames[index] != null;
+	}
+	
+	/**
+	 * Decode frame index into pix, w * h pixels in rows of w.
+	 * 
+	 * @return false if the frame was not built
+	 */
+	boolean decode(int index, int[] pix) {
+		if (!has(index)) {
+			return false;
+		}
+		Reader reader = new Reader(mFrames[index]);
+		for (int y = 0; y < mHeight; y++) {
+			reader.readRow(pix, y * mWidth, mWidth, y == 0);
+		}
+		return true;
+	}
+	
+	/**
+	 * Decode frame index into display, a bitmap from {@link #createDisplayBitmap()}, a strip
+	 * of {@link #STRIP_ROWS} rows at a time.
+	 * 
+	 * @param rows scratch from {@link #createStripBuffer()}
+	 * @return false if the frame was not built
+	 */
+	boolean decodeTo(int index, Bitmap display, int[] rows) {
+		if (!has(index)) {
+			return false;
+		}
+		int w = mWidth;
+		Reader reader = new Reader(mFrames[index]);
+		// rows[0, w) keeps the last row of the previous strip for the prediction
+		for (int y0 = 0; y0 < mHeight; y0 += STRIP_ROWS) {
+			int n = Math.min(STRIP_ROWS, mHeight - y0);
+			for (int r = 0; r < n; r++) {
+				reader.readRow(rows, (r + 1) * w, w, y0 + r == 0);
+			}
+			display.setPixels(rows, w, w, 0, y0, w, n);
+			System.arraycopy(rows, n * w, rows, 0, w);
+		}
+		return true;
+	}
+	
+	int[] createStripBuffer() {
+		return new int[(STRIP_ROWS + 1) * mWidth];
+	}
+	
+	/**
+	 * A mutable bitmap with the layout of the frames, from {@link KeyFramePool} if it has one.
+	 */
+	Bitmap createDisplayBitmap() {
+		Bitmap display = KeyFramePool.getInstance().get(mWidth, mHeight, mConfig);
+		return (display != null) ? display : Bitmap.createBitmap(mWidth, mHeight, mConfig);
+	}
+	
+	int getWidth() {
+		return mWidth;
+	}
+	
+	int getHeight() {
+		return mHeight;
+	}
+	
+	/**
+	 * The compressed bytes of all frames.
+	 */
+	long getByteCount() {
+		long size = 0;
+		for (byte[] frame : mFrames) {
+			if (frame != null) {
+				size += frame.length;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Per row and block of BLOCK pixels: four 4 bit widths, one per channel from blue to alpha,
+	 * then for each channel the zigzag coded residuals of the block at that width.
+	 */
+	static byte[] encode(int[] pix, int w, int h) {
+		BitWriter out = new BitWriter(w * h);
+		int[] residuals = new int[BLOCK];
+		int[] widths = new int[4];
+		for (int y = 0; y < h; y++) {
+			int row = y * w;
+			for (int x0 = 0; x0 < w; x0 += BLOCK) {
+				int n = Math.min(BLOCK, w - x0);
+				for (int k = 0; k < n; k++) {
+					residuals[k] = subBytes(pix[row + x0 + k], predict(pix, w, x0 + k, y));
+				}
+				for (int c = 0; c < 4; c++) {
+					int bits = 0;
+					for (int k = 0; k < n; k++) {
+						bits |= zigzag(residuals[k], c);
+					}
+					widths[c] = 32 - Integer.numberOfLeadingZeros(bits);
+					out.write(widths[c], 4);
+				}
+				for (int c = 0; c < 4; c++) {
+					for (int k = 0; widths[c] > 0 && k < n; k++) {
+						out.write(zigzag(residuals[k], c), widths[c]);
+					}
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * left + up - upper left, each channel on its own; left on the first row, up on the first
+	 * column.
+	 */
+	private static int predict(int[] pix, int w, int x, int y) {
+		if (y == 0) {
+			return (x == 0) ? 0 : pix[x - 1];
+		}
+		int i = y * w + x;
+		if (x == 0) {
+			return pix[i - w];
+		}
+		return subBytes(addBytes(pix[i - 1], pix[i - w]), pix[i - w - 1]);
+	}
+	
+	private static int zigzag(int residuals, int channel) {
+		int residual = (byte) (residuals >>> (channel * 8));
+		return (residual << 1) ^ (residual >> 31);
+	}
+	
+	/**
+	 * The four bytes of a and b added on their own, modulo 256, without carries between them.
+	 */
+	static int addBytes(int a, int b) {
+		return ((a & 0x7f7f7f7f) + (b & 0x7f7f7f7f)) ^ ((a ^ b) & 0x80808080);
+	}
+	
+	/**
+	 * The four bytes of b subtracted from those of a on their own, modulo 256.
+	 */
+	static int subBytes(int a, int b) {
+		return ((a | 0x80808080) - (b & 0x7f7f7f7f)) ^ ((a ^ ~b) & 0x80808080);
+	}
+	
+	/**
+	 * Reads a frame back one row at a time, in the order encode wrote it.
+	 */
+	private static class Reader {
+		private final byte[] mData;
+		private final int[] mResiduals = new int[BLOCK];
+		/* bits are read from a 64 bit window, refilled a byte at a time */
+		private long mWindow;
+		private int mAvailable;
+		private int mPosition;
+		
+		Reader(byte[] data) {
+			mData = data;
+		}
+		
+		/**
+		 * Decode the next row into pix at offset, the row before it must be at offset - w
+		 * unless this is the first one.
+		 */
+		void readRow(int[] pix, int offset, int w, boolean isFirstRow) {
+			byte[] data = mData;
+			int[] residuals = mResiduals;
+			long window = mWindow;
+			int available = mAvailable;
+			int position = mPosition;
+			for (int x0 = 0; x0 < w; x0 += BLOCK) {
+				int n = Math.min(BLOCK, w - x0);
+				while (available < 16) {
+					window = (window << 8) | ((position < data.length) ? data[position++] & 0xff : 0);
+					available += 8;
+				}
+				available -= 16;
+				int header = (int) (window >>> available) & 0xffff;
+				for (int k = 0; k < n; k++) {
+					residuals[k] = 0;
+				}
+				for (int c = 0; c < 4; c++) {
+					int width = (header >>> (12 - 4 * c)) & 0xf;
+					if (width == 0) {
+						continue;
+					}
+					int mask = (1 << width) - 1;
+					int shift = c * 8;
+					for (int k = 0; k < n; k++) {
+						if (available < width) {
+							while (available <= 56) {
+								window = (window << 8) | ((position < data.length) ? data[position++] & 0xff : 0);
+								available += 8;
+							}
+						}
+						available -= width;
+						int zigzag = (int) (window >>> available) & mask;
+						residuals[k] |= (((zigzag >>> 1) ^ -(zigzag & 1)) & 0xff) << shift;
+					}
+				}
+				
+				// the same prediction as in encode, inlined for the common case
+				int k = 0;
+				int i = offset + x0;
+				if (isFirstRow) {
+					for (; k < n; k++, i++) {
+						pix[i] = addBytes((x0 + k == 0) ? 0 : pix[i - 1], residuals[k]);
+					}
+				} else {
+					if (x0 == 0) {
+						pix[i] = addBytes(pix[i - w], residuals[0]);
+						k = 1;
+						i++;
+					}
+					for (; k < n; k++, i++) {
+						pix[i] = addBytes(subBytes(addBytes(pix[i - 1], pix[i - w]), pix[i - w - 1]), residuals[k]);
+					}
+				}
+			}
+			mWindow = window;
+			mAvailable = available;
+			mPosition = position;
+		}
+	}
+	
+	private static class BitWriter {
+		private byte[] mBuffer;
+		private int mLength;
+		private long mWindow;
+		private int mBits;
+		
+		BitWriter(int capacity) {
+			mBuffer = new byte[Math.max(16, capacity)];
+		}
+		
+		void write(int value, int bits) {
+			mWindow = (mWindow << bits) | value;
+			mBits += bits;
+			while (mBits >= 8) {
+				mBits -= 8;
+				if (mLength == mBuffer.length) {
+					byte[] grown = new byte[mBuffer.length * 2];
+					System.arraycopy(mBuffer, 0, grown, 0, mLength);
+					mBuffer = grown;
+				}
+				mBuffer[mLength++] = (byte) (mWindow >>> mBits);
+			}
+		}
+		
+		byte[] toByteArray() {
+			if (mBits > 0) {
+				write(0, 8 - mBits);
+			}
+			byte[] result = new byte[mLength];
+			System.arraycopy(mBuffer, 0, result, 0, mLength);
+			return result;
+		}
+	}
+}
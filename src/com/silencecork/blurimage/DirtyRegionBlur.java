@@ -0,0 +1,102 @@
+package com.silencecork.blurimage;
+
+/**
+ * Incremental StackBlur. When only some rectangles of the source change, the blurred output
+ * only changes within those rectangles grown by the radius, and recomputing that part needs
+ * the source grown by the radius once more (one radius for each pass). Blurring that tile
+ * gives exactly what a full {@link StackBlurEngine} pass gives for the written pixels, since
+ * tile edges which are not image edges stay a radius away from them.
+ */
+public class DirtyRegionBlur {
+	
+	private final StackBlurEngine mEngine = new StackBlurEngine();
+	
+	/**
+	 * The part of the image to read and the part of the output to write for one change.
+	 */
+	public static class Tile {
+		public int readLeft;
+		public int readTop;
+		public int readRight;
+		public int readBottom;
+		public int writeLeft;
+		public int writeTop;
+		public int writeRight;
+		public int writeBottom;
+		
+		public int readWidth() {
+			return readRight - readLeft;
+		}
+		
+		public int readHeight() {
+			return readBottom - readTop;
+		}
+		
+		public int writeWidth() {
+			return writeRight - writeLeft;
+		}
+		
+		public int writeHeight() {
+			return writeBottom - writeTop;
+		}
+	}
+	
+	/**
+	 * @return the tile for the changed rectangle [left, right) x [top, bottom), or null if it
+	 *         does not touch the image
+	 */
+	public static Tile tileFor(int w, int h, int radius, int left, int top, int right, int bottom) {
+		left = Math.max(0, left);
+		top = Math.max(0, top);
+		right = Math.min(w, right);
+		bottom = Math.min(h, bottom);
+		if (left >= right || top >= bottom) {
+			return null;
+		}
+		
+		Tile tile = new Tile();
+		tile.writeLeft = Math.max(0, left - radius);
+		tile.writeTop = Math.max(0, top - radius);
+		tile.writeRight = Math.min(w, right + radius);
+		tile.writeBottom = Math.min(h, bottom + radius);
+		tile.readLeft = Math.max(0, tile.writeLeft - radius);
+		tile.readTop = Math.max(0, tile.writeTop - radius);
+		tile.readRight = Math.min(w, tile.writeRight + radius);
+		tile.readBottom = Math.min(h, tile.writeBottom + radius);
+		return tile;
+	}
+	
+	/**
+	 * Bring blurred up to date with source after the given rectangles of source changed.
+	 * 
+	 * @param source the current, unblurred pixels
+	 * @param blurred StackBlur of the previous source with the same radius, updated in place
+	 * @param rects changed rectangles as left, top, right, bottom quadruples
+	 */
+	public void reblur(int[] source, int[] blurred, int w, int h, int radius, int[] rects) {
+		if (radius < 1) {
+			return;
+		}
+		for (int i = 0; i + 3 < rects.length; i += 4) {
+			Tile tile = tileFor(w, h, radius, rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+			if (tile == null) {
+				continue;
+			}
+			int tw = tile.readWidth();
+			int th = tile.readHeight();
+			int[] pix = new int[tw * th];
+			for (int y = 0; y < th; y++) {
+				System.arraycopy(source, (tile.readTop + y) * w + tile.readLeft, pix, y * tw, tw);
+			}
+			
+			mEngine.blur(pix, tw, th, radius);
+			
+			int offsetX = tile.writeLeft - tile.readLeft;
+			int offsetY = tile.writeTop - tile.readTop;
+			for (int y = 0; y < tile.writeHeight(); y++) {
+				System.arraycopy(pix, (offsetY + y) * tw + offsetX, blurred, (tile.writeTop + y) * w + tile.writeLeft, 
+						tile.writeWidth());
+			}
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package com.silencecork.blurimage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Disk LRU cache for thumbnails and decoded photos.
+ * 
+ * Entries are named by the SHA-1 of the source path, its size and modification time plus a
+ * variant string, so distinct sources never share a file. What is cached and in which LRU
+ * order is kept in an append-only journal, which is replayed on open instead of scanning the
+ * directory. Files are written to a temporary name and renamed into place, so a crash never
+ * leaves a half written entry behind. When the total size goes over the byte budget the least
+ * recently used entries are deleted.
+ * 
+ * A write is announced with a DIRTY line before its temporary file is created and closed by
+ * PUT or DEL, so what a crash left behind is found from the journal. The directory is only
+ * scanned, and every file it does not list deleted, when the journal is missing or corrupt.
+ */
+public class DiskThumbnailCache {
+	private static final String TAG = "DiskThumbnailCache";
+	
+	private static final String JOURNAL = "journal";
+	private static final String JOURNAL_TMP = "journal.tmp";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String PUT = "PUT";
+	private static final String GET = "GET";
+	private static final String DEL = "DEL";
+	private static final String DIRTY = "DIRTY";
+	
+	/* rewrite the journal once it has this many redundant lines per entry */
+	private static final int COMPACT_RATIO = 2;
+	private static final int COMPACT_MIN_LINES = 1000;
+	
+	private final File mDirectory;
+	private final long mMaxBytes;
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+	private long mSize;
+	private int mJournalLines;
+	private Writer mJournal;
+	/* keys being written by putBitmap, at most one write per key */
+	private final HashSet<String> mWriting = new HashSet<String>();
+	
+	public DiskThumbnailCache(File directory, long maxBytes) throws IOException {
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("can not create cache directory " + directory);
+		}
+		if (!readJournal()) {
+			deleteUnlistedFiles();
+		}
+		rewriteJournal();
+	}
+	
+	/**
+	 * Key of a file based source. Changing the file changes the key.
+	 * 
+	 * @param variant what was made from the source, e.g. "mini" or "long800"
+	 */
+	public static String keyFor(String path, String variant) {
+		File f = new File(path);
+		StringBuilder b = new StringBuilder();
+		b.append(path).append('\n');
+		b.append(f.length()).append('\n');
+		b.append(f.lastModified()).append('\n');
+		b.append(variant);
+		return sha1(b.toString());
+	}
+	
+	/**
+	 * Decodes outside of the lock. An entry replaced meanwhile is renamed over the old file, so
+	 * the decode sees one of the two complete files.
+	 */
+	public Bitmap getBitmap(String key) {
+		File file = get(key);
+		if (file == null) {
+			return null;
+		}
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+		if (bitmap == null && file.exists()) {
+			// corrupt rather than evicted while decoding
+			remove(key);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * @return the cached file of key, or null if there is none
+	 */
+	public synchronized File get(String key) {
+		if (!mEntries.containsKey(key)) {
+			return null;
+		}
+		File file = new File(mDirectory, key);
+		if (!file.exists()) {
+			remove(key);
+			return null;
+		}
+		appendJournal(GET, key, -1);
+		return file;
+	}
+	
+	/**
+	 * Compresses and syncs outside of the lock, reads of other entries go on meanwhile.
+	 * 
+	 * @return false if writing failed or key is being written already
+	 */
+	public boolean putBitmap(String key, Bitmap bitmap, CompressFormat format, int quality) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return false;
+		}
+		synchronized (this) {
+			if (!mWriting.add(key)) {
+				return false;
+			}
+			appendJournal(DIRTY, key, -1);
+		}
+		
+		File tmp = new File(mDirectory, key + TMP_SUFFIX);
+		FileOutputStream stream = null;
+		boolean written = false;
+		try {
+			stream = new FileOutputStream(tmp);
+			written = bitmap.compress(format, quality, stream);
+			stream.getFD().sync();
+		} catch (IOException e) {
+			Log.e(TAG, "write " + key + " failed", e);
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					written = false;
+				}
+			}
+		}
+		
+		synchronized (this) {
+			mWriting.remove(key);
+			File file = new File(mDirectory, key);
+			if (!written || !tmp.renameTo(file)) {
+				tmp.delete();
+				// the old entry goes too, DEL closes the DIRTY line either way
+				Long old = mEntries.remove(key);
+				if (old != null) {
+					mSize -= old;
+				}
+				file.delete();
+				appendJournal(DEL, key, -1);
+				return false;
+			}
+			
+			Long old = mEntries.put(key, file.length());
+			if (old != null) {
+				mSize -= old;
+			}
+			mSize += file.length();
+			appendJournal(PUT, key, file.length());
+			trimToSize();
+			return true;
+		}
+	}
+	
+	public synchronized void remove(String key) {
+		Long size = mEntries.remove(key);
+		if (size != null) {
+			mSize -= size;
+			appendJournal(DEL, key, -1);
+		}
+		new File(mDirectory, key).delete();
+	}
+	
+	public synchronized long size() {
+		return mSize;
+	}
+	
+	public synchronized void close() {
+		if (mJournal != null) {
+			try {
+				mJournal.close();
+			} catch (IOException e) {
+				Log.e(TAG, "", e);
+			}
+			mJournal = null;
+		}
+	}
+	
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+		while (mSize > mMaxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			mSize -= eldest.getValue();
+			new File(mDirectory, eldest.getKey()).delete();
+			appendJournal(DEL, eldest.getKey(), -1);
+		}
+	}
+	
+	/**
+	 * Replay the journal. A torn last line from a crash is skipped, so are entries whose rename
+	 * never happened. Files of writes the crash interrupted are deleted.
+	 * 
+	 * @return false if there is no journal or it is corrupt, the directory has to be scanned then
+	 */
+	private boolean readJournal() {
+		File journal = new File(mDirectory, JOURNAL);
+		if (!journal.exists()) {
+			return false;
+		}
+		HashSet<String> written = new HashSet<String>();
+		HashSet<String> unfinished = new HashSet<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(journal));
+			String line;
+			boolean isTorn = false;
+			while ((line = reader.readLine()) != null) {
+				if (isTorn) {
+					// only the last line may be broken
+					throw new IOException("corrupt journal line");
+				}
+				String[] parts = line.split(" ");
+				if (parts.length < 2) {
+					isTorn = true;
+					continue;
+				}
+				String key = parts[1];
+				if (PUT.equals(parts[0]) && parts.length == 3) {
+					try {
+						long size = Long.parseLong(parts[2]);
+						Long old = mEntries.put(key, size);
+						mSize += size - ((old != null) ? old : 0);
+						unfinished.remove(key);
+					} catch (NumberFormatException e) {
+						isTorn = true;
+					}
+				} else if (GET.equals(parts[0])) {
+					mEntries.get(key);
+				} else if (DEL.equals(parts[0])) {
+					Long old = mEntries.remove(key);
+					if (old != null) {
+						mSize -= old;
+					}
+					unfinished.remove(key);
+				} else if (DIRTY.equals(parts[0])) {
+					written.add(key);
+					unfinished.add(key);
+				} else {
+					isTorn = true;
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "read journal failed, scanning the directory", e);
+			mEntries.clear();
+			mSize = 0;
+			return false;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					Log.e(TAG, "", e);
+				}
+			}
+		}
+		
+		// a key removed while it was written may have left its temporary file behind as well
+		for (String key : written) {
+			new File(mDirectory, key + TMP_SUFFIX).delete();
+		}
+		for (String key : unfinished) {
+			if (!mEntries.containsKey(key)) {
+				// renamed into place, but the crash came before its PUT
+				new File(mDirectory, key).delete();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Delete temporary files and files the journal does not know, they would take disk space
+	 * outside of the byte budget forever.
+	 */
+	private void deleteUnlistedFiles() {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || JOURNAL.equals(name)) {
+				continue;
+			}
+			if (name.endsWith(TMP_SUFFIX) || !mEntries.containsKey(name)) {
+				if (!file.delete()) {
+					Log.w(TAG, "can not delete " + file);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Write a compact journal with one line per entry, in LRU order, and swap it in.
+	 */
+	private void rewriteJournal() throws IOException {
+		close();
+		File tmp = new File(mDirectory, JOURNAL_TMP);
+		Writer writer = new BufferedWriter(new FileWriter(tmp));
+		try {
+			for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+				writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+			}
+			// writes still running are closed by their PUT or DEL in the new journal
+			for (String key : mWriting) {
+				writer.write(DIRTY + " " + key + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		File journal = new File(mDirectory, JOURNAL);
+		if (!tmp.renameTo(journal)) {
+			throw new IOException("can not replace " + journal);
+		}
+		mJournalLines = mEntries.size() + mWriting.size();
+		mJournal = new BufferedWriter(new FileWriter(journal, true));
+		trimToSize();
+	}
+	
+	private void appendJournal(String op, String key, long size) {
+		try {
+			if (mJournal == null) {
+				mJournal = new BufferedWriter(new FileWriter(new File(mDirectory, JOURNAL), true));
+			}
+			mJournal.write((size >= 0) ? (op + " " + key + " " + size + "\n") : (op + " " + key + "\n"));
+			mJournal.flush();
+			mJournalLines++;
+			if (mJournalLines > COMPACT_MIN_LINES && mJournalLines > COMPACT_RATIO * mEntries.size()) {
+				rewriteJournal();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "journal write failed", e);
+		}
+	}
+	
+	private static String sha1(String s) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(s.getBytes("UTF-8"));
+			StringBuilder b = new StringBuilder(hash.length * 2);
+			for (byte value : hash) {
+				b.append(Character.forDigit((value >> 4) & 0xf, 16));
+				b.append(Character.forDigit(value & 0xf, 16));
+			}
+			return b.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.silencecork.blurimage;
+
+/**
+ * Dual filter (Kawase style) blur. The image is halved several times with a tent filter, the
+ * 1 3 3 1 weights of bilinear taps between the source pixels, and then brought back up with a
+ * tent filter, so the cost stays around 1.33 times a single pass whatever the radius is. It
+ * trades the exact StackBlur shape for speed and is meant for strong blurs.
+ * 
+ * The radius is mapped onto the pyramid by matching variances: a StackBlur of radius r has a
+ * variance of r * (r + 2) / 6 per axis, and each down/up pair adds 1.5 * 4^level (0.75 for
+ * each tent, measured in full resolution pixels). Whatever the pyramid cannot reach is made
+ * up by a small StackBlur on the coarsest level.
+ */
+public class DualFilterBlurEngine implements BlurEngine {
+	
+	private static final int MIN_LEVEL_SIZE = 2;
+	/* variance of one down/up pair on level 0, in full resolution pixels */
+	private static final float PAIR_VARIANCE = 1.5f;
+	
+	private final StackBlurEngine mResidualBlur = new StackBlurEngine();
+
+	@Override
+	public void blur(int[] pix, int w, int h, int radius) {
+		if (radius < 1) {
+			return;
+		}
+		
+		float targetVariance = radius * (radius + 2) / 6f;
+		int levels = 0;
+		float pyramidVariance = 0;
+		int levelW = w;
+		int levelH = h;
+		while (((levelW + 1) >> 1) >= MIN_LEVEL_SIZE && ((levelH + 1) >> 1) >= MIN_LEVEL_SIZE) {
+			float next = pyramidVariance + PAIR_VARIANCE * (1 << (levels << 1));
+			if (next > targetVariance) {
+				break;
+			}
+			pyramidVariance = next;
+			levels++;
+			levelW = (levelW + 1) >> 1;
+			levelH = (levelH + 1) >> 1;
+		}
+		
+		if (levels == 0) {
+			mResidualBlur.blur(pix, w, h, radius);
+			return;
+		}
+		
+		int[][] planes = new int[levels + 1][];
+		int[] widths = new int[levels + 1];
+		int[] heights = new int[levels + 1];
+		planes[0] = pix;
+		widths[0] = w;
+		heights[0] = h;
+		for (int i = 1; i <= levels; i++) {
+			widths[i] = (widths[i - 1] + 1) >> 1;
+			heights[i] = (heights[i - 1] + 1) >> 1;
+			planes[i] = new int[widths[i] * heights[i]];
+			downsample(planes[i - 1], widths[i - 1], heights[i - 1], planes[i], widths[i], heights[i]);
+		}
+		
+		float residualVariance = (targetVariance - pyramidVariance) / (1 << (levels << 1));
+		int residualRadius = Math.round((float) Math.sqrt(1 + 6 * residualVariance) - 1);
+		if (residualRadius >= 1) {
+			mResidualBlur.blur(planes[levels], widths[levels], heights[levels], residualRadius);
+		}
+		
+		for (int i = levels; i > 0; i--) {
+			upsample(planes[i], widths[i], heights[i], planes[i - 1], widths[i - 1], heights[i - 1]);
+		}
+	}
+	
+	/**
+	 * Level i reaches 2^i full resolution pixels with its downsampling tent and less than 2^i
+	 * with the upsampling one, the residual StackBlur its radius in pixels of the coarsest level. A small image
+	 * stops the pyramid early, so this is the furthest reach over every number of levels.
+	 */
+	@Override
+	public int support(int radius) {
+		if (radius < 1) {
+			return 0;
+		}
+		float targetVariance = radius * (radius + 2) / 6f;
+		int support = radius;
+		int levels = 0;
+		float pyramidVariance = 0;
+		while (pyramidVariance + PAIR_VARIANCE * (1 << (levels << 1)) <= targetVariance) {
+			pyramidVariance += PAIR_VARIANCE * (1 << (levels << 1));
+			levels++;
+			float residualVariance = (targetVariance - pyramidVariance) / (1 << (levels << 1));
+			int residualRadius = Math.round((float) Math.sqrt(1 + 6 * residualVariance) - 1);
+			support = Math.max(support, (1 << (levels + 2)) - 4 + Math.max(0, residualRadius) * (1 << levels));
+		}
+		return support;
+	}
+	
+	/**
+	 * Tent filter: destination pixel x mixes source pixels 2x - 1 to 2x + 2 with weights 1, 3,
+	 * 3 and 1 (out of 8) on each axis, the edges are clamped. Run as a horizontal pass into
+	 * per channel sums and a vertical one out of them.
+	 */
+	private static void downsample(int[] src, int sw, int sh, int[] dst, int dw, int dh) {
+		int swm = sw - 1;
+		int shm = sh - 1;
+		int[] sumR = new int[dw * sh];
+		int[] sumG = new int[dw * sh];
+		int[] sumB = new int[dw * sh];
+		int ti = 0;
+		for (int y = 0; y < sh; y++) {
+			int row = y * sw;
+			for (int x = 0; x < dw; x++) {
+				int x1 = x << 1;
+				int p0 = src[row + Math.max(x1 - 1, 0)];
+				int p1 = src[row + Math.min(x1, swm)];
+				int p2 = src[row + Math.min(x1 + 1, swm)];
+				int p3 = src[row + Math.min(x1 + 2, swm)];
+				sumR[ti] = ((p0 >> 16) & 0xff) + 3 * ((p1 >> 16) & 0xff) + 3 * ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff);
+				sumG[ti] = ((p0 >> 8) & 0xff) + 3 * ((p1 >> 8) & 0xff) + 3 * ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff);
+				sumB[ti] = (p0 & 0xff) + 3 * (p1 & 0xff) + 3 * (p2 & 0xff) + (p3 & 0xff);
+				ti++;
+			}
+		}
+		int di = 0;
+		for (int y = 0; y < dh; y++) {
+			int y1 = y << 1;
+			int row0 = Math.max(y1 - 1, 0) * dw;
+			int row1 = Math.min(y1, shm) * dw;
+			int row2 = Math.min(y1 + 1, shm) * dw;
+			int row3 = Math.min(y1 + 2, shm) * dw;
+			for (int x = 0; x < dw; x++) {
+				int r = (sumR[row0 + x] + 3 * sumR[row1 + x] + 3 * sumR[row2 + x] + sumR[row3 + x] + 32) >> 6;
+				int g = (sumG[row0 + x] + 3 * sumG[row1 + x] + 3 * sumG[row2 + x] + sumG[row3 + x] + 32) >> 6;
+				int b = (sumB[row0 + x] + 3 * sumB[row1 + x] + 3 * sumB[row2 + x] + sumB[row3 + x] + 32) >> 6;
+				dst[di++] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+	
+	/**
+	 * Tent filter: every destination pixel mixes the four nearest source pixels with
+	 * weights 9, 3, 3 and 1 (out of 16). The alpha already in dst is kept.
+	 */
+	private static void upsample(int[] src, int sw, int sh, int[] dst, int dw, int dh) {
+		int swm = sw - 1;
+		int shm = sh - 1;
+		int di = 0;
+		for (int y = 0; y < dh; y++) {
+			int sy = y >> 1;
+			int ny = ((y & 1) == 0) ? Math.max(sy - 1, 0) : Math.min(sy + 1, shm);
+			int row = sy * sw;
+			int nrow = ny * sw;
+			for (int x = 0; x < dw; x++) {
+				int sx = x >> 1;
+				int nx = ((x & 1) == 0) ? Math.max(sx - 1, 0) : Math.min(sx + 1, swm);
+				int p0 = src[row + sx];
+				int p1 = src[row + nx];
+				int p2 = src[nrow + sx];
+				int p3 = src[nrow + nx];
+				int r = (9 * ((p0 >> 16) & 0xff) + 3 * ((p1 >> 16) & 0xff) + 3 * ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 8) >> 4;
+				int g = (9 * ((p0 >> 8) & 0xff) + 3 * ((p1 >> 8) & 0xff) + 3 * ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 8) >> 4;
+				int b = (9 * (p0 & 0xff) + 3 * (p1 & 0xff) + 3 * (p2 & 0xff) + (p3 & 0xff) + 8) >> 4;
+				dst[di] = (dst[di] & 0xff000000) | (r << 16) | (g << 8) | b;
+				di++;
+			}
+		}
+	}
+}
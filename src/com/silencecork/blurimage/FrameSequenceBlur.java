@@ -0,0 +1,220 @@
+package com.silencecork.blurimage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Blurs a sequence of frames (GIF or video previews) as a pipeline: a decode thread fills
+ * frames from a {@link FrameSource}, a blur thread blurs them and the calling thread hands
+ * them to a {@link FrameSink}. The stages are joined by bounded queues and overlap, so the
+ * throughput is set by the slowest stage instead of the sum of all of them.
+ * 
+ * Frames and blur scratch buffers are recycled: only queueCapacity + 3 frames ever exist (one
+ * in each stage plus the ones waiting in between), and a frame given to the sink is reused
+ * for decoding once onFrame returns.
+ */
+public class FrameSequenceBlur {
+	
+	public static class Frame {
+		/* packed ARGB pixels, may be longer than width * height when reused */
+		public int[] pixels;
+		public int width;
+		public int height;
+		public int index;
+		public long timestamp;
+		
+		/**
+		 * Make pixels big enough for a frame of the given size, keeping the buffer if possible.
+		 */
+		public void ensureSize(int w, int h) {
+			if (pixels == null || pixels.length < w * h) {
+				pixels = new int[w * h];
+			}
+			width = w;
+			height = h;
+		}
+	}
+	
+	public interface FrameSource {
+		/**
+		 * Decode the next frame into frame, reusing its pixels through {@link Frame#ensureSize(int, int)}.
+		 * 
+		 * @return false when there are no more frames
+		 */
+		public boolean next(Frame frame) throws Exception;
+	}
+	
+	public interface FrameSink {
+		/**
+		 * Receive a blurred frame, in source order. frame is reused after this returns.
+		 */
+		public void onFrame(Frame frame) throws Exception;
+	}
+	
+	private static final Frame END_OF_STREAM = new Frame();
+	
+	private final BlurEngine mEngine;
+	private final int mRadius;
+	private final int mQueueCapacity;
+	
+	private final BlockingQueue<Frame> mFree;
+	private final BlockingQueue<Frame> mDecoded;
+	private final BlockingQueue<Frame> mBlurred;
+	private volatile Exception mError;
+	
+	public FrameSequenceBlur(BlurEngine engine, int radius, int queueCapacity) {
+		mEngine = engine;
+		mRadius = radius;
+		mQueueCapacity = Math.max(1, queueCapacity);
+		int frames = mQueueCapacity + 3;
+		mFree = new ArrayBlockingQueue<Frame>(frames);
+		// the free frames are what bounds the pipeline, the queues always have room for all
+		// of them plus the end of stream marker
+		mDecoded = new ArrayBlockingQueue<Frame>(frames + 1);
+		mBlurred = new ArrayBlockingQueue<Frame>(frames + 1);
+		for (int i = 0; i < frames; i++) {
+			mFree.add(new Frame());
+		}
+	}
+	
+	/**
+	 * Run the whole sequence, returns once the sink got the last frame. Not reentrant.
+	 * 
+	 * @throws Exception the first failure of any stage, the other stages are stopped
+	 */
+	public void run(final FrameSource source, FrameSink sink) throws Exception {
+		mError = null;
+		Thread decoder = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				decode(source);
+			}
+			
+		}, "FrameSequenceBlur decode");
+		Thread blurrer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				blur();
+			}
+			
+		}, "FrameSequenceBlur blur");
+		decoder.start();
+		blurrer.start();
+		
+		Frame frame = null;
+		try {
+			while (true) {
+				frame = mBlurred.take();
+				if (frame == END_OF_STREAM || mError != null) {
+					// after a failure nothing more goes to the sink
+					break;
+				}
+				sink.onFrame(frame);
+				mFree.put(frame);
+				frame = null;
+			}
+		} catch (Exception e) {
+			fail(e);
+		} finally {
+			if (frame != null && frame != END_OF_STREAM) {
+				mFree.offer(frame);
+			}
+			if (mError != null) {
+				decoder.interrupt();
+				blurrer.interrupt();
+			}
+			decoder.join();
+			blurrer.join();
+			recycleQueues();
+		}
+		
+		if (mError != null) {
+			throw mError;
+		}
+	}
+	
+	private void decode(FrameSource source) {
+		int index = 0;
+		Frame frame = null;
+		try {
+			while (mError == null) {
+				frame = mFree.take();
+				frame.index = index;
+				if (!source.next(frame)) {
+					break;
+				}
+				index++;
+				mDecoded.put(frame);
+				frame = null;
+			}
+		} catch (Exception e) {
+			fail(e);
+		} finally {
+			// the frame of a failed or the last call to next, it goes back for the next run
+			if (frame != null) {
+				mFree.offer(frame);
+			}
+			mDecoded.offer(END_OF_STREAM);
+		}
+	}
+	
+	private void blur() {
+		StackBlurEngine.Buffers buffers = new StackBlurEngine.Buffers();
+		Frame frame = null;
+		try {
+			while (true) {
+				frame = mDecoded.take();
+				if (frame == END_OF_STREAM) {
+					frame = null;
+					break;
+				}
+				if (mError != null) {
+					// the frame stays unblurred, it must not reach the sink
+					mFree.put(frame);
+					frame = null;
+					continue;
+				}
+				if (mEngine instanceof StackBlurEngine) {
+					((StackBlurEngine) mEngine).blur(frame.pixels, frame.width, frame.height, mRadius, buffers);
+				} else {
+					mEngine.blur(frame.pixels, frame.width, frame.height, mRadius);
+				}
+				mBlurred.put(frame);
+				frame = null;
+			}
+		} catch (Exception e) {
+			fail(e);
+		} finally {
+			// interrupted while blurring or handing it on
+			if (frame != null) {
+				mFree.offer(frame);
+			}
+			mBlurred.offer(END_OF_STREAM);
+		}
+	}
+	
+	private synchronized void fail(Exception e) {
+		if (mError == null) {
+			mError = e;
+		}
+	}
+	
+	/**
+	 * Put every frame back into the free queue so the instance can run again.
+	 */
+	private void recycleQueues() {
+		Frame frame;
+		while ((frame = mDecoded.poll()) != null) {
+			if (frame != END_OF_STREAM) {
+				mFree.offer(frame);
+			}
+		}
+		while ((frame = mBlurred.poll()) != null) {
+			if (frame != END_OF_STREAM) {
+				mFree.offer(frame);
+			}
+		}
+	}
+}
@@ -1,11 +1,11 @@
 package com.silencecork.blurimage;
 
+import java.util.concurrent.Future;
+
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Bundle;
 
 public class HandleInIntent implements OnPhotoChooseOperator {
 
@@ -23,20 +23,10 @@ public class HandleInIntent implements OnPhotoChooseOperator {
 		return intent;
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
-	public Bitmap onHandleResult(int requestCode, Uri uri) {
+	public Future<String> onHandleResult(int requestCode, Uri uri, OnPhotoLoadListener listener) {
 		if (requestCode == 0) {
-			String path = PhotoChooserUtil.getRealPathBeforeKitKat(mContext,
-					uri);
-			String message = "URI: " + uri.toString() + ", PATH: " + path;
-			Bundle data = new Bundle();
-			data.putString("message", message);
-
-			mContext.showDialog(0, data);
-			String imagePath = FileUtil.getImagePath(mContext, uri);
-			Bitmap bitmap = ThumbnailUtils.decodeBitmapBaseOnLongSide(imagePath, 800);
-			return bitmap;
+			return PhotoLoader.load(mContext, uri, listener);
 		}
 		
 		return null;
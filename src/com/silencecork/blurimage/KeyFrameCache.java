@@ -0,0 +1,217 @@
+package com.silencecork.blurimage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * Process wide store of key frame sets, addressed by the content of the source pixels and the
+ * blur schedule rather than by the Bitmap instance. Identical images handed to several views
+ * are blurred once: concurrent requests for the same key wait for the one computation already
+ * running, later requests get the finished frames from memory.
+ * 
+ * The cache holds one reference of every set it keeps and gives it up on eviction, callers get
+ * a reference of their own and release it when they are done with the frames.
+ */
+public class KeyFrameCache {
+	
+	public interface Loader {
+		public Bitmap[] load() throws InterruptedException;
+	}
+	
+	private static KeyFrameCache sInstance;
+	
+	private final LruCache<Key, KeyFrameHandle> mFrames;
+	private final HashMap<Key, FutureTask<KeyFrameHandle>> mInFlight = new HashMap<Key, FutureTask<KeyFrameHandle>>();
+	
+	public static synchronized KeyFrameCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new KeyFrameCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+		}
+		return sInstance;
+	}
+	
+	private KeyFrameCache(int maxBytes) {
+		mFrames = new LruCache<Key, KeyFrameHandle>(maxBytes) {
+
+			@Override
+			protected int sizeOf(Key key, KeyFrameHandle frames) {
+				return frames.getByteCount();
+			}
+			
+			@Override
+			protected void entryRemoved(boolean evicted, Key key, KeyFrameHandle oldValue, KeyFrameHandle newValue) {
+				oldValue.release();
+			}
+			
+		};
+	}
+	
+	/**
+	 * Return the frames for key, computing them with loader only if nobody has done or is
+	 * doing it already. The calling thread runs the loader itself when it is the first one.
+	 * 
+	 * @return a reference of the caller's own, release it when done
+	 */
+	public KeyFrameHandle obtain(final Key key, final Loader loader) throws InterruptedException {
+		while (true) {
+			FutureTask<KeyFrameHandle> task;
+			boolean isLeader = false;
+			synchronized (this) {
+				KeyFrameHandle cached = mFrames.get(key);
+				if (cached != null && cached.tryAcquire()) {
+					return cached;
+				}
+				task = mInFlight.get(key);
+				if (task == null) {
+					task = new FutureTask<KeyFrameHandle>(new Callable<KeyFrameHandle>() {
+
+						@Override
+						public KeyFrameHandle call() throws Exception {
+							// one reference for the cache, one for the leader
+							KeyFrameHandle frames = new KeyFrameHandle(loader.load());
+							frames.acquire();
+							synchronized (KeyFrameCache.this) {
+								mFrames.put(key, frames);
+							}
+							return frames;
+						}
+						
+					});
+					mInFlight.put(key, task);
+					isLeader = true;
+				}
+			}
+			
+			if (isLeader) {
+				try {
+					task.run();
+				} finally {
+					synchronized (this) {
+						mInFlight.remove(key);
+					}
+				}
+			}
+			
+			try {
+				KeyFrameHandle frames = task.get();
+				if (isLeader || frames.tryAcquire()) {
+					return frames;
+				}
+				// evicted and released before this thread got to it, look again
+				continue;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (isLeader) {
+					if (cause instanceof InterruptedException) {
+						throw (InterruptedException) cause;
+					}
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+				// the thread computing it gave up, try again and maybe take over
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+	}
+	
+	public synchronized void evictAll() {
+		mFrames.evictAll();
+	}
+	
+	/**
+	 * Evict the sets nobody besides the cache holds a reference of, e.g. after the views
+	 * showing them gave up their frames.
+	 */
+	public synchronized void evictUnused() {
+		for (Map.Entry<Key, KeyFrameHandle> entry : mFrames.snapshot().entrySet()) {
+			if (!entry.getValue().isShared()) {
+				mFrames.remove(entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Add every frame the cache holds to frames, for {@link KeyFrameMemoryBudget}.
+	 */
+	synchronized void collectFrames(List<Bitmap> frames) {
+		for (KeyFrameHandle handle : mFrames.snapshot().values()) {
+			for (Bitmap frame : handle.getFrames()) {
+				if (frame != null) {
+					frames.add(frame);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Two independent 64 bit hashes over the pixels, read back one row at a time: FNV-1a and a
+	 * multiply-rotate hash with its own constants. A hit in the cache hands out another image's
+	 * frames, so a single 64 bit hash collision must not be enough for it.
+	 */
+	public static Key keyOf(Bitmap source, int[] radii, String variant) {
+		int w = source.getWidth();
+		int h = source.getHeight();
+		int[] row = new int[w];
+		long hash = 0xcbf29ce484222325L;
+		long check = 0x6a09e667f3bcc909L;
+		for (int y = 0; y < h; y++) {
+			source.getPixels(row, 0, w, 0, y, w, 1);
+			for (int x = 0; x < w; x++) {
+				int pixel = row[x];
+				hash = (hash ^ pixel) * 0x100000001b3L;
+				check = Long.rotateLeft(check + pixel * 0x9e3779b97f4a7c15L, 29) * 0xbf58476d1ce4e5b9L;
+			}
+		}
+		return new Key(hash, check, w, h, radii, variant);
+	}
+	
+	public static final class Key {
+		private final long mHash;
+		/* second hash, only compared in equals() */
+		private final long mCheck;
+		private final int mWidth;
+		private final int mHeight;
+		private final int[] mRadii;
+		private final String mVariant;
+		
+		Key(long hash, long check, int width, int height, int[] radii, String variant) {
+			mHash = hash;
+			mCheck = check;
+			mWidth = width;
+			mHeight = height;
+			mRadii = radii.clone();
+			mVariant = variant;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return mHash == k.mHash && mCheck == k.mCheck && mWidth == k.mWidth && mHeight == k.mHeight
+					&& Arrays.equals(mRadii, k.mRadii) && mVariant.equals(k.mVariant);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = (int) (mHash ^ (mHash >>> 32));
+			result = 31 * result + mWidth;
+			result = 31 * result + mHeight;
+			result = 31 * result + Arrays.hashCode(mRadii);
+			return 31 * result + mVariant.hashCode();
+		}
+	}
+}
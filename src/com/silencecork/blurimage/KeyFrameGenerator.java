@@ -0,0 +1,261 @@
+package com.silencecork.blurimage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.silencecork.blurimage.BlurredImageView.BlurImageUtil;
+
+/**
+ * Builds the key frames of a {@link BlurredImageView}. Every key frame only depends on the
+ * source bitmap, so in parallel mode they are blurred on a shared bounded pool and handed out
+ * as soon as each one completes, the most blurred one first since it is shown first.
+ */
+class KeyFrameGenerator {
+	private static final String TAG = "KeyFrameGenerator";
+	
+	private static final int MAX_THREADS = 4;
+	
+	/* Bytes a StackBlur pass touches per pixel: source copy, r/g/b planes and the result. */
+	private static final int WORKING_BYTES_PER_PIXEL = 20;
+	
+	private static ExecutorService sExecutor;
+	
+	public interface OnKeyFrameListener {
+		public void onKeyFrame(int index, Bitmap frame);
+	}
+	
+	/**
+	 * How one key frame set is built. {@link KeyFrameMemoryBudget} scales it down when memory
+	 * is tight.
+	 */
+	public static class Plan {
+		public BlurEngine engine;
+		public boolean parallel;
+		public boolean reducedPrecision;
+		/* only every frameStride-th frame, counted from the most blurred one, is built */
+		public int frameStride = 1;
+		/* the source is shrunk by this factor before blurring, the radii shrink with it */
+		public int downscale = 1;
+		/* the radii grow by this factor, for sources decoded larger than DEFAULT_DECODE_LONG_SIDE */
+		public float radiusScale = 1;
+		/* gets the time of every blur when set */
+		public AdaptiveBlurTuner tuner;
+		
+		/**
+		 * Everything in the plan which changes the pixels of the key frames.
+		 */
+		String describe() {
+			return (reducedPrecision ? "565" : "8888") + "/" + frameStride + "/" + downscale;
+		}
+		
+		boolean isWanted(int index, int count) {
+			return (count - 1 - index) % frameStride == 0;
+		}
+	}
+	
+	private BlurImageUtil mBlurImageUtil;
+	
+	KeyFrameGenerator(BlurImageUtil util) {
+		mBlurImageUtil = util;
+	}
+	
+	/**
+	 * Blur the key frames of src into frames, frame i uses blurRadiusAtFrame(i + 1). Frames the
+	 * plan skips stay null.
+	 * 
+	 * @throws InterruptedException when the calling thread is interrupted, pending frames are cancelled
+	 */
+	public void generate(Bitmap src, Bitmap[] frames, final Plan plan, OnKeyFrameListener listener) 
+			throws InterruptedException {
+		if (!plan.parallel) {
+			for (int i = 0; i < frames.length; i++) {
+				if (!plan.isWanted(i, frames.length)) {
+					continue;
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				frames[i] = blurFrame(src, i, plan);
+				if (listener != null) {
+					listener.onKeyFrame(i, frames[i]);
+				}
+			}
+			return;
+		}
+		
+		final Semaphore inFlight = new Semaphore(computeMaxFramesInFlight(src));
+		CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(getExecutor());
+		final Bitmap[] results = new Bitmap[frames.length];
+		/* set under the lock of results once nobody takes the results any more */
+		final boolean[] isAbandoned = new boolean[1];
+		@SuppressWarnings("unchecked")
+		Future<Integer>[] futures = new Future[frames.length];
+		final Bitmap source = src;
+		int submitted = 0;
+		
+		try {
+			for (int i = frames.length - 1; i >= 0; i--) {
+				if (!plan.isWanted(i, frames.length)) {
+					continue;
+				}
+				final int index = i;
+				futures[i] = completion.submit(new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						inFlight.acquire();
+						Bitmap frame;
+						try {
+							frame = blurFrame(source, index, plan);
+						} finally {
+							inFlight.release();
+						}
+						synchronized (results) {
+							if (isAbandoned[0]) {
+								// finished after a cancel, nobody will take it
+								if (frame != null) {
+									KeyFramePool.getInstance().put(frame);
+								}
+							} else {
+								results[index] = frame;
+							}
+						}
+						return index;
+					}
+					
+				});
+				submitted++;
+			}
+			
+			for (int done = 0; done < submitted; done++) {
+				int index;
+				try {
+					index = completion.take().get();
+				} catch (ExecutionException e) {
+					Log.e(TAG, "blur key frame failed", e.getCause());
+					abandon(futures, results, frames, isAbandoned);
+					throw unwrap(e);
+				}
+				synchronized (results) {
+					frames[index] = results[index];
+				}
+				if (listener != null) {
+					listener.onKeyFrame(index, frames[index]);
+				}
+			}
+		} catch (InterruptedException e) {
+			abandon(futures, results, frames, isAbandoned);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Cancel the pending frames and hand the finished ones nobody got yet back to the pool,
+	 * frames a worker is still blurring go there once it is done.
+	 */
+	private static void abandon(Future<Integer>[] futures, Bitmap[] results, Bitmap[] frames, boolean[] isAbandoned) {
+		cancel(futures);
+		synchronized (results) {
+			isAbandoned[0] = true;
+			for (int i = 0; i < results.length; i++) {
+				if (results[i] != null && results[i] != frames[i]) {
+					KeyFramePool.getInstance().put(results[i]);
+				}
+				results[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * The failure of a worker as it was thrown there, so an OutOfMemoryError stays one.
+	 */
+	private static RuntimeException unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		return new RuntimeException(cause);
+	}
+	
+	private Bitmap blurFrame(Bitmap src, int index, Plan plan) {
+		long start = System.nanoTime();
+		Bitmap frame = mBlurImageUtil.fastblur(src, radiusOf(index, plan), plan.reducedPrecision, plan.engine);
+		if (plan.tuner != null && frame != null) {
+			plan.tuner.record(plan.engine, src.getWidth() * src.getHeight(), System.nanoTime() - start);
+		}
+		return frame;
+	}
+	
+	private static void cancel(Future<Integer>[] futures) {
+		for (Future<Integer> future : futures) {
+			if (future != null) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * The blur schedule of count key frames, 0 for the frames the plan skips.
+	 */
+	public int[] getRadii(int count, Plan plan) {
+		int[] radii = new int[count];
+		for (int i = 0; i < count; i++) {
+			radii[i] = plan.isWanted(i, count) ? radiusOf(i, plan) : 0;
+		}
+		return radii;
+	}
+	
+	private int radiusOf(int index, Plan plan) {
+		// a downscaled first frame still has to be blurred, fastblur returns nothing for 0
+		return Math.max(1, (int) (mBlurImageUtil.blurRadiusAtFrame(index + 1) * plan.radiusScale / plan.downscale));
+	}
+	
+	/**
+	 * The memory guard: only as many frames are blurred at once as the free heap can hold.
+	 */
+	private static int computeMaxFramesInFlight(Bitmap src) {
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		long perFrame = (long) src.getWidth() * src.getHeight() * WORKING_BYTES_PER_PIXEL;
+		long frames = (perFrame > 0) ? (free / 2) / perFrame : MAX_THREADS;
+		return (int) Math.max(1, Math.min(MAX_THREADS, frames));
+	}
+	
+	/**
+	 * How many frames a parallel generation blurs at the same time at most.
+	 */
+	static int getParallelism() {
+		return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+	}
+	
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(getParallelism(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "KeyFrameBlur #" + mCount.getAndIncrement());
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+				
+			});
+		}
+		return sExecutor;
+	}
+}
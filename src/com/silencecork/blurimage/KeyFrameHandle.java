@@ -0,0 +1,92 @@
+package com.silencecork.blurimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * A reference counted key frame set. Everybody who keeps the frames, a view showing them or
+ * {@link KeyFrameCache}, holds a reference and lets go of it with {@link #release()}. When the
+ * last one does, the frames go back to {@link KeyFramePool} for the next set of the same size,
+ * so views share frames without copies and nobody recycles frames somebody else still shows.
+ */
+public class KeyFrameHandle {
+	
+	private final Bitmap[] mFrames;
+	private int mRefCount = 1;
+	
+	/**
+	 * Wrap frames, the caller holds the first reference.
+	 */
+	KeyFrameHandle(Bitmap[] frames) {
+		mFrames = frames;
+	}
+	
+	/**
+	 * Take another reference.
+	 * 
+	 * @throws IllegalStateException if the last reference is already gone
+	 */
+	public KeyFrameHandle acquire() {
+		if (!tryAcquire()) {
+			throw new IllegalStateException("key frames already released");
+		}
+		return this;
+	}
+	
+	/**
+	 * @return false if the last reference is already gone and the frames may be reused
+	 */
+	synchronized boolean tryAcquire() {
+		if (mRefCount == 0) {
+			return false;
+		}
+		mRefCount++;
+		return true;
+	}
+	
+	/**
+	 * @return true if somebody besides the holder of one reference keeps the frames
+	 */
+	synchronized boolean isShared() {
+		return mRefCount > 1;
+	}
+	
+	/**
+	 * Give one reference back, the frames must not be used through it any more.
+	 */
+	public void release() {
+		synchronized (this) {
+			if (mRefCount == 0) {
+				throw new IllegalStateException("key frames released too often");
+			}
+			if (--mRefCount > 0) {
+				return;
+			}
+		}
+		KeyFramePool pool = KeyFramePool.getInstance();
+		for (Bitmap frame : mFrames) {
+			if (frame != null) {
+				pool.put(frame);
+			}
+		}
+	}
+	
+	/**
+	 * The frames, valid while a reference is held. Do not recycle or modify them.
+	 */
+	public Bitmap[] getFrames() {
+		return mFrames;
+	}
+	
+	/**
+	 * The bytes of all frames.
+	 */
+	public int getByteCount() {
+		int size = 0;
+		for (Bitmap frame : mFrames) {
+			if (frame != null) {
+				size += frame.getRowBytes() * frame.getHeight();
+			}
+		}
+		return size;
+	}
+}
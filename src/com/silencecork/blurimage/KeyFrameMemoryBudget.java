@@ -0,0 +1,238 @@
+package com.silencecork.blurimage;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Accounts for the key frames held by every {@link BlurredImageView}, {@link KeyFrameCache} and
+ * {@link KeyFramePool} against one budget. When a new set would not fit, the cached and pooled
+ * frames no view shows are given up first, then the set is planned with less precision, fewer
+ * frames or half the resolution, in that order. On trim-memory callbacks the frames of views
+ * which are not on screen are dropped; the views build them again when they are needed.
+ * 
+ * Only used from the UI thread.
+ */
+public class KeyFrameMemoryBudget {
+	private static final String TAG = "KeyFrameMemoryBudget";
+	
+	static final int LEVEL_FULL = 0;
+	static final int LEVEL_REDUCED_PRECISION = 1;
+	static final int LEVEL_FEWER_FRAMES = 2;
+	static final int LEVEL_HALF_RESOLUTION = 3;
+	
+	private static KeyFrameMemoryBudget sInstance;
+	
+	private final WeakHashMap<BlurredImageView, Bitmap[]> mFrames = new WeakHashMap<BlurredImageView, Bitmap[]>();
+	private final WeakHashMap<BlurredImageView, Long> mPrivateBytes = new WeakHashMap<BlurredImageView, Long>();
+	private long mBudget = Runtime.getRuntime().maxMemory() / 4;
+	
+	public static synchronized KeyFrameMemoryBudget getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new KeyFrameMemoryBudget();
+			if (Build.VERSION.SDK_INT >= 14) {
+				TrimMemoryCallbacks.register(context, sInstance);
+			}
+		}
+		return sInstance;
+	}
+	
+	private KeyFrameMemoryBudget() {
+	}
+	
+	/**
+	 * The number of bytes all key frames together may use, a quarter of the heap by default.
+	 */
+	public void setBudget(long bytes) {
+		mBudget = bytes;
+	}
+	
+	public long getBudget() {
+		return mBudget;
+	}
+	
+	/**
+	 * The bytes held by the tracked key frames, the cache and the pool. Frames shared by
+	 * several views or the cache count once.
+	 */
+	public long getUsedBytes() {
+		return usedBytesExcept(null);
+	}
+	
+	/**
+	 * Decide how the next key frame set of view is built so it fits the budget next to the
+	 * frames of the other views. If even the smallest plan does not fit, the frames of views
+	 * which are not on screen are dropped first.
+	 */
+	KeyFrameGenerator.Plan planFor(BlurredImageView view, int width, int height, boolean opaque, int frameCount) {
+		long free = mBudget - usedBytesExcept(view);
+		if (bytesAt(LEVEL_FULL, width, height, opaque, frameCount) > free) {
+			releaseUnused();
+			free = mBudget - usedBytesExcept(view);
+		}
+		int level = LEVEL_FULL;
+		while (level < LEVEL_HALF_RESOLUTION && bytesAt(level, width, height, opaque, frameCount) > free) {
+			level++;
+		}
+		if (bytesAt(level, width, height, opaque, frameCount) > free) {
+			trim(false, view);
+		}
+		
+		KeyFrameGenerator.Plan plan = new KeyFrameGenerator.Plan();
+		plan.reducedPrecision = opaque && level >= LEVEL_REDUCED_PRECISION;
+		plan.frameStride = (level >= LEVEL_FEWER_FRAMES) ? 2 : 1;
+		plan.downscale = (level >= LEVEL_HALF_RESOLUTION) ? 2 : 1;
+		if (level != LEVEL_FULL) {
+			Log.d(TAG, "key frames over budget, planned as " + plan.describe());
+		}
+		return plan;
+	}
+	
+	/**
+	 * Whether a key frame set of width x height still fits the budget at full quality.
+	 */
+	boolean fitsAtFullQuality(BlurredImageView view, int width, int height, int frameCount) {
+		return bytesAt(LEVEL_FULL, width, height, false, frameCount) <= mBudget - usedBytesExcept(view);
+	}
+	
+	private static long bytesAt(int level, int width, int height, boolean opaque, int frameCount) {
+		int bytesPerPixel = (opaque && level >= LEVEL_REDUCED_PRECISION) ? 2 : 4;
+		int frames = (level >= LEVEL_FEWER_FRAMES) ? (frameCount + 1) / 2 : frameCount;
+		if (level >= LEVEL_HALF_RESOLUTION) {
+			width /= 2;
+			height /= 2;
+		}
+		return (long) width * height * bytesPerPixel * frames;
+	}
+	
+	/**
+	 * @param privateBytes memory of the view's key frames which is not in frames, e.g. an
+	 *        off-heap slab
+	 */
+	void track(BlurredImageView view, Bitmap[] frames, long privateBytes) {
+		mFrames.put(view, frames);
+		mPrivateBytes.put(view, privateBytes);
+	}
+	
+	void untrack(BlurredImageView view) {
+		mFrames.remove(view);
+		mPrivateBytes.remove(view);
+	}
+	
+	private long usedBytesExcept(BlurredImageView except) {
+		IdentityHashMap<Bitmap, Boolean> counted = new IdentityHashMap<Bitmap, Boolean>();
+		long used = 0;
+		for (Map.Entry<BlurredImageView, Bitmap[]> entry : mFrames.entrySet()) {
+			if (entry.getKey() == except) {
+				continue;
+			}
+			for (Bitmap frame : entry.getValue()) {
+				used += bytesOnce(frame, counted);
+			}
+		}
+		for (Map.Entry<BlurredImageView, Long> entry : mPrivateBytes.entrySet()) {
+			if (entry.getKey() != except) {
+				used += entry.getValue();
+			}
+		}
+		// the cache holds the frames of views sharing them and sets nobody shows any more
+		List<Bitmap> cached = new ArrayList<Bitmap>();
+		KeyFrameCache.getInstance().collectFrames(cached);
+		for (Bitmap frame : cached) {
+			used += bytesOnce(frame, counted);
+		}
+		return used + KeyFramePool.getInstance().getByteCount();
+	}
+	
+	private static long bytesOnce(Bitmap frame, IdentityHashMap<Bitmap, Boolean> counted) {
+		if (frame == null || frame.isRecycled() || counted.put(frame, Boolean.TRUE) != null) {
+			return 0;
+		}
+		return (long) frame.getRowBytes() * frame.getHeight();
+	}
+	
+	/**
+	 * Give up the frames no view shows: cached sets only the cache holds, and the pool.
+	 */
+	private void releaseUnused() {
+		KeyFrameCache.getInstance().evictUnused();
+		KeyFramePool.getInstance().clear();
+	}
+	
+	/**
+	 * @param includeShown also trim views on screen, they keep the frame they display
+	 */
+	private void trim(boolean includeShown, BlurredImageView except) {
+		// trimKeyFrames() untracks the view, iterate over a copy
+		ArrayList<BlurredImageView> views = new ArrayList<BlurredImageView>(mFrames.keySet());
+		for (BlurredImageView view : views) {
+			if (view == null || view == except) {
+				continue;
+			}
+			if (!view.isShown() || view.getWindowToken() == null) {
+				view.trimKeyFrames(false);
+			} else if (includeShown) {
+				view.trimKeyFrames(true);
+			}
+		}
+		// the trimmed frames are still in the cache, and evicted ones go to the pool
+		releaseUnused();
+	}
+	
+	/**
+	 * Called with the levels of {@link ComponentCallbacks2}, on API 14 and later by the
+	 * budget itself. Apps on older versions may forward their own callbacks.
+	 */
+	public void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			// views keep their own references, this only drops the frames nobody shows
+			KeyFrameCache.getInstance().evictAll();
+			trim(true, null);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			trim(false, null);
+		}
+	}
+	
+	public void onLowMemory() {
+		onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+	
+	/**
+	 * ComponentCallbacks2 only exists from API 14 on. The budget is used on every load, so it
+	 * must not implement it itself, this class is only loaded where it exists.
+	 */
+	private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+		private final KeyFrameMemoryBudget mBudget;
+		
+		private TrimMemoryCallbacks(KeyFrameMemoryBudget budget) {
+			mBudget = budget;
+		}
+		
+		static void register(Context context, KeyFrameMemoryBudget budget) {
+			context.getApplicationContext().registerComponentCallbacks(new TrimMemoryCallbacks(budget));
+		}
+		
+		@Override
+		public void onTrimMemory(int level) {
+			mBudget.onTrimMemory(level);
+		}
+		
+		@Override
+		public void onLowMemory() {
+			mBudget.onLowMemory();
+		}
+		
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.silencecork.blurimage;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+/**
+ * Mutable bitmaps of released key frames, handed out again for new key frames of the same size
+ * and config so a new set does not allocate while the old one waits for the garbage collector.
+ * Capped in bytes, the oldest bitmaps are recycled first.
+ */
+class KeyFramePool {
+	
+	private static KeyFramePool sInstance;
+	
+	/* oldest first */
+	private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+	private long mMaxBytes = Runtime.getRuntime().maxMemory() / 16;
+	private long mBytes;
+	
+	static synchronized KeyFramePool getInstance() {
+		if (sInstance == null) {
+			sInstance = new KeyFramePool();
+		}
+		return sInstance;
+	}
+	
+	private KeyFramePool() {
+	}
+	
+	synchronized void setMaxBytes(long bytes) {
+		mMaxBytes = bytes;
+		trimTo(mMaxBytes);
+	}
+	
+	/**
+	 * @return a mutable bitmap of that size and config with undefined pixels, or null
+	 */
+	synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+			Bitmap bitmap = mBitmaps.get(i);
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+				mBitmaps.remove(i);
+				mBytes -= bytesOf(bitmap);
+				return bitmap;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Keep bitmap for reuse, it must not be used by the caller any more. Immutable bitmaps
+	 * cannot be reused and are left to the garbage collector.
+	 */
+	synchronized void put(Bitmap bitmap) {
+		if (bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		mBitmaps.add(bitmap);
+		mBytes += bytesOf(bitmap);
+		trimTo(mMaxBytes);
+	}
+	
+	synchronized void clear() {
+		trimTo(0);
+	}
+	
+	/**
+	 * The bytes of the bitmaps waiting for reuse.
+	 */
+	synchronized long getByteCount() {
+		return mBytes;
+	}
+	
+	private void trimTo(long maxBytes) {
+		while (mBytes > maxBytes && !mBitmaps.isEmpty()) {
+			Bitmap bitmap = mBitmaps.remove(0);
+			mBytes -= bytesOf(bitmap);
+			bitmap.recycle();
+		}
+	}
+	
+	private static long bytesOf(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
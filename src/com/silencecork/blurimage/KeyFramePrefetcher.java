@@ -0,0 +1,153 @@
+package com.silencecork.blurimage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Bookkeeping of {@link BlurredImageView#prefetch}: the bitmaps decoded ahead of time, and one
+ * {@link BlurScheduler} owner per prefetched path so the work for a path can be cancelled on
+ * its own. The decoded bitmaps are capped in bytes, the key frames built for them live in
+ * {@link KeyFrameCache} like any other.
+ */
+class KeyFramePrefetcher {
+	
+	private static KeyFramePrefetcher sInstance;
+	
+	/* least recently used first */
+	private final LinkedHashMap<String, Bitmap> mBitmaps = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+	private final HashMap<String, Object> mTokens = new HashMap<String, Object>();
+	private long mMaxBytes = Runtime.getRuntime().maxMemory() / 16;
+	private long mBytes;
+	
+	static synchronized KeyFramePrefetcher getInstance() {
+		if (sInstance == null) {
+			sInstance = new KeyFramePrefetcher();
+		}
+		return sInstance;
+	}
+	
+	private KeyFramePrefetcher() {
+	}
+	
+	synchronized void setMaxBytes(long bytes) {
+		mMaxBytes = bytes;
+		trimTo(mMaxBytes);
+	}
+	
+	synchronized boolean canHold(long bytes) {
+		return mBytes + bytes <= mMaxBytes;
+	}
+	
+	/**
+	 * The scheduler owner of the work for path, created on first use.
+	 */
+	synchronized Object tokenFor(String path) {
+		Object token = mTokens.get(path);
+		if (token == null) {
+			token = new Object();
+			mTokens.put(path, token);
+		}
+		return token;
+	}
+	
+	/**
+	 * Give up path after its decode failed or was not kept, so a later prefetch tries again.
+	 * Nothing happens if path was prefetched anew meanwhile under another token.
+	 */
+	synchronized void forget(String path, Object token) {
+		if (mTokens.get(path) == token) {
+			mTokens.remove(path);
+		}
+	}
+	
+	synchronized boolean isPending(String path) {
+		return mTokens.containsKey(path) || mBitmaps.containsKey(path);
+	}
+	
+	/**
+	 * Keep a decoded bitmap, the least recently used ones are dropped to stay within the cap.
+	 * 
+	 * @return false if path is no longer prefetched, the caller keeps the bitmap
+	 */
+	synchronized boolean put(String path, Bitmap bitmap) {
+		if (!mTokens.containsKey(path)) {
+			return false;
+		}
+		Bitmap old = mBitmaps.put(path, bitmap);
+		if (old != null) {
+			mBytes -= bytesOf(old);
+		}
+		mBytes += bytesOf(bitmap);
+		trimTo(mMaxBytes);
+		return true;
+	}
+	
+	synchronized Bitmap peek(String path) {
+		return mBitmaps.get(path);
+	}
+	
+	/**
+	 * Hand the decoded bitmap of path over to the caller, who owns it from now on.
+	 */
+	synchronized Bitmap take(String path) {
+		Bitmap bitmap = mBitmaps.remove(path);
+		if (bitmap != null) {
+			mBytes -= bytesOf(bitmap);
+		}
+		mTokens.remove(path);
+		return bitmap;
+	}
+	
+	/**
+	 * Forget every path not in keep. Dropped bitmaps are not recycled, a key frame job may
+	 * still be reading them.
+	 * 
+	 * @return the scheduler owners of the forgotten paths, to cancel their work
+	 */
+	synchronized Collection<Object> retainOnly(Collection<String> keep) {
+		ArrayList<Object> dropped = new ArrayList<Object>();
+		Iterator<Map.Entry<String, Object>> tokens = mTokens.entrySet().iterator();
+		while (tokens.hasNext()) {
+			Map.Entry<String, Object> entry = tokens.next();
+			if (!keep.contains(entry.getKey())) {
+				dropped.add(entry.getValue());
+				tokens.remove();
+			}
+		}
+		Iterator<Map.Entry<String, Bitmap>> bitmaps = mBitmaps.entrySet().iterator();
+		while (bitmaps.hasNext()) {
+			Map.Entry<String, Bitmap> entry = bitmaps.next();
+			if (!keep.contains(entry.getKey())) {
+				mBytes -= bytesOf(entry.getValue());
+				bitmaps.remove();
+			}
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Drop the least recently used bitmaps and cancel the key frames still being built for them.
+	 */
+	private void trimTo(long maxBytes) {
+		Iterator<Map.Entry<String, Bitmap>> bitmaps = mBitmaps.entrySet().iterator();
+		while (mBytes > maxBytes && bitmaps.hasNext()) {
+			Map.Entry<String, Bitmap> entry = bitmaps.next();
+			mBytes -= bytesOf(entry.getValue());
+			bitmaps.remove();
+			Object token = mTokens.remove(entry.getKey());
+			if (token != null) {
+				BlurScheduler.getInstance().cancel(token);
+			}
+		}
+	}
+	
+	private static long bytesOf(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,154 @@
+package com.silencecork.blurimage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Key frames of one image kept in a single direct ByteBuffer, outside of the garbage collected
+ * heap. All frames have the same size and pixel format, frame i lives at i * frame bytes. A
+ * frame is only copied into a bitmap when it is shown, see {@link #copyTo(int, Bitmap)}.
+ * 
+ * Frames written from a Bitmap are in the bitmap's native layout, frames written from int[]
+ * are ARGB ints; a slab is meant to be used with one of the two.
+ */
+public class KeyFrameSlab {
+	
+	private final ByteBuffer mSlab;
+	private final int mFrameCount;
+	private final int mWidth;
+	private final int mHeight;
+	private final Bitmap.Config mConfig;
+	private final int mFrameBytes;
+	private final boolean[] mPresent;
+	
+	/**
+	 * @param config ARGB_8888 or RGB_565
+	 */
+	public KeyFrameSlab(int frameCount, int width, int height, Bitmap.Config config) {
+		int bytesPerPixel = (config == Bitmap.Config.RGB_565) ? 2 : 4;
+		long frameBytes = (long) width * height * bytesPerPixel;
+		if (frameBytes * frameCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("key frames too large for one slab: " + width + "x" + height
+					+ " x " + frameCount);
+		}
+		mFrameCount = frameCount;
+		mWidth = width;
+		mHeight = height;
+		mConfig = (config == Bitmap.Config.RGB_565) ? config : Bitmap.Config.ARGB_8888;
+		mFrameBytes = (int) frameBytes;
+		mPresent = new boolean[frameCount];
+		mSlab = ByteBuffer.allocateDirect(mFrameBytes * frameCount).order(ByteOrder.nativeOrder());
+	}
+	
+	/**
+	 * Copy a set of key frames into a new slab. Null frames stay absent.
+	 * 
+	 * @return null if there is no frame at all
+	 */
+	public static KeyFrameSlab of(Bitmap[] frames) {
+		Bitmap first = null;
+		for (Bitmap frame : frames) {
+			if (frame != null) {
+				first = frame;
+				break;
+			}
+		}
+		if (first == null) {
+			return null;
+		}
+		
+		KeyFrameSlab slab = new KeyFrameSlab(frames.length, first.getWidth(), first.getHeight(), first.getConfig());
+		for (int i = 0; i < frames.length; i++) {
+			if (frames[i] != null) {
+				slab.put(i, frames[i]);
+			}
+		}
+		return slab;
+	}
+	
+	public void put(int index, Bitmap frame) {
+		if (frame.getWidth() != mWidth || frame.getHeight() != mHeight || frame.getConfig() != mConfig) {
+			throw new IllegalArgumentException("frame " + index + " does not match the slab layout");
+		}
+		frame.copyPixelsToBuffer(frameAt(index));
+		mPresent[index] = true;
+	}
+	
+	/**
+	 * Store ARGB pixels, for ARGB_8888 slabs used without bitmaps.
+	 */
+	public void putPixels(int index, int[] argb) {
+		checkIntLayout(argb);
+		frameAt(index).asIntBuffer().put(argb, 0, mWidth * mHeight);
+		mPresent[index] = true;
+	}
+	
+	public void getPixels(int index, int[] argb) {
+		checkIntLayout(argb);
+		IntBuffer frame = frameAt(index).asIntBuffer();
+		frame.get(argb, 0, mWidth * mHeight);
+	}
+	
+	/**
+	 * Copy frame index into display, a mutable bitmap made by {@link #createDisplayBitmap()}.
+	 * 
+	 * @return false if the frame is absent
+	 */
+	public boolean copyTo(int index, Bitmap display) {
+		if (!mPresent[index]) {
+			return false;
+		}
+		display.copyPixelsFromBuffer(frameAt(index));
+		return true;
+	}
+	
+	/**
+	 * A mutable bitmap with the layout of the frames, reuse it for all of them.
+	 */
+	public Bitmap createDisplayBitmap() {
+		return Bitmap.createBitmap(mWidth, mHeight, mConfig);
+	}
+	
+	public boolean has(int index) {
+		return mPresent[index];
+	}
+	
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+	
+	public int getWidth() {
+		return mWidth;
+	}
+	
+	public int getHeight() {
+		return mHeight;
+	}
+	
+	/**
+	 * The off-heap bytes held by the slab.
+	 */
+	public int getByteCount() {
+		return mSlab.capacity();
+	}
+	
+	/**
+	 * A view of frame index, independent of the position of other views so frames can be read
+	 * and written from different threads.
+	 */
+	private ByteBuffer frameAt(int index) {
+		ByteBuffer frame = mSlab.duplicate();
+		frame.position(index * mFrameBytes);
+		frame.limit((index + 1) * mFrameBytes);
+		return frame.slice().order(ByteOrder.nativeOrder());
+	}
+	
+	private void checkIntLayout(int[] argb) {
+		if (mConfig != Bitmap.Config.ARGB_8888 || argb.length < mWidth * mHeight) {
+			throw new IllegalArgumentException("int pixels need an ARGB_8888 slab and " + (mWidth * mHeight) + " ints");
+		}
+	}
+}
@@ -1,10 +1,11 @@
 package com.silencecork.blurimage;
 
+import java.util.concurrent.Future;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.util.SparseArray;
@@ -22,9 +23,35 @@ public class MainActivity extends Activity {
 	
 	private BlurredImageView mImageView;
 	
-	private Bitmap mOriginalBitmap;
+	private Future<String> mPendingLoad;
+	
+	/* what mPendingLoad resolves, to start it again after a configuration change */
+	private Uri mPendingUri;
+	
+	private int mPendingRequestCode;
 	
+	/**
+	 * Survives a configuration change: the key frames, and the photo still being resolved.
+	 */
+	private static class Retained {
+		RetainedKeyFrames mKeyFrames;
+		Uri mPendingUri;
+		int mPendingRequestCode;
+	}
+	
+	private OnPhotoChooseOperator.OnPhotoLoadListener mPhotoLoadListener = new OnPhotoChooseOperator.OnPhotoLoadListener() {
+
+		@Override
+		public void onPhotoPathResolved(String path) {
+			mPendingLoad = null;
+			mPendingUri = null;
+			// decoded by the view at the size it shows the photo
+			mImageView.setImageSourceForAnimation(path);
+		}
+		
+	};
 
+	@SuppressWarnings("deprecation")
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -34,6 +61,16 @@ public class MainActivity extends Activity {
 		
 		mOperationMap.put(MODE_HANDLE_IN_INTENT, new HandleInIntent(this));
 		mOperationMap.put(MODE_HANDLE_IN_ACTIVITY_RESULT, new HandleInActivityResult(this));
+		
+		// after a rotation the key frames of the previous instance are shown again, not rebuilt
+		Retained retained = (Retained) getLastNonConfigurationInstance();
+		if (retained != null) {
+			retained.mKeyFrames.restore(mImageView);
+			if (retained.mPendingUri != null) {
+				// the previous instance's load was cancelled with it, resolve the photo again
+				loadPhoto(retained.mPendingRequestCode, retained.mPendingUri);
+			}
+		}
 	}
 
 	public void choosePhoto(View v) {
@@ -49,13 +86,36 @@ public class MainActivity extends Activity {
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		if (resultCode == RESULT_OK) {
-			Uri uri = data.getData();
-			OnPhotoChooseOperator operator = mOperationMap.get(mMode);
-			mOriginalBitmap = operator.onHandleResult(requestCode, uri);
-			if (mOriginalBitmap != null) {
-				mImageView.setImageBitmapForAnimation(mOriginalBitmap);
-			}
+			loadPhoto(requestCode, data.getData());
+		}
+	}
+	
+	private void loadPhoto(int requestCode, Uri uri) {
+		OnPhotoChooseOperator operator = mOperationMap.get(mMode);
+		if (mPendingLoad != null) {
+			mPendingLoad.cancel(true);
+		}
+		mPendingLoad = operator.onHandleResult(requestCode, uri, mPhotoLoadListener);
+		mPendingUri = (mPendingLoad != null) ? uri : null;
+		mPendingRequestCode = requestCode;
+	}
+	
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		Retained retained = new Retained();
+		retained.mKeyFrames = RetainedKeyFrames.retain(mImageView);
+		retained.mPendingUri = mPendingUri;
+		retained.mPendingRequestCode = mPendingRequestCode;
+		return retained;
+	}
+	
+	@Override
+	protected void onDestroy() {
+		if (mPendingLoad != null) {
+			mPendingLoad.cancel(true);
+			mPendingLoad = null;
 		}
+		super.onDestroy();
 	}
 	
 	@Override
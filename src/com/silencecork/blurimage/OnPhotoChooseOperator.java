@@ -1,11 +1,25 @@
 package com.silencecork.blurimage;
 
+import java.util.concurrent.Future;
+
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.net.Uri;
 
 public interface OnPhotoChooseOperator {
+	
+	/**
+	 * Called on the UI thread once a chosen photo is resolved in the background.
+	 */
+	public interface OnPhotoLoadListener {
+		public void onPhotoPathResolved(String path);
+	}
+	
 	public Intent onCreateIntent();
 
-	public Bitmap onHandleResult(int requestCode, Uri uri);
-}
\ No newline at end of file
+	/**
+	 * Resolve the chosen photo to its file off the UI thread.
+	 * 
+	 * @return the pending load, cancel it to drop the result, or null if requestCode is not handled
+	 */
+	public Future<String> onHandleResult(int requestCode, Uri uri, OnPhotoLoadListener listener);
+}
@@ -0,0 +1,74 @@
+package com.silencecork.blurimage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.app.Activity;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.silencecork.blurimage.OnPhotoChooseOperator.OnPhotoLoadListener;
+
+/**
+ * Resolves a chosen photo to its file on a background thread, so the two ContentResolver
+ * queries never block the UI thread. Decoding is left to {@link BlurredImageView}, which knows
+ * the size it needs. Results of a cancelled load are dropped.
+ */
+class PhotoLoader implements Callable<String> {
+	
+	private static ExecutorService sExecutor;
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+	
+	private final Activity mActivity;
+	private final Uri mUri;
+	private final OnPhotoLoadListener mListener;
+	private FutureTask<String> mTask;
+	
+	static Future<String> load(Activity activity, Uri uri, OnPhotoLoadListener listener) {
+		PhotoLoader loader = new PhotoLoader(activity, uri, listener);
+		loader.mTask = new FutureTask<String>(loader);
+		getExecutor().execute(loader.mTask);
+		return loader.mTask;
+	}
+	
+	private PhotoLoader(Activity activity, Uri uri, OnPhotoLoadListener listener) {
+		mActivity = activity;
+		mUri = uri;
+		mListener = listener;
+	}
+
+	@Override
+	public String call() throws Exception {
+		String path = PhotoChooserUtil.getRealPathBeforeKitKat(mActivity, mUri);
+		final String message = "URI: " + mUri.toString() + ", PATH: " + path;
+		final String imagePath = FileUtil.getImagePath(mActivity, mUri);
+		sMainHandler.post(new Runnable() {
+
+			@SuppressWarnings("deprecation")
+			@Override
+			public void run() {
+				if (mTask.isCancelled()) {
+					return;
+				}
+				Bundle data = new Bundle();
+				data.putString("message", message);
+				mActivity.showDialog(0, data);
+				mListener.onPhotoPathResolved(imagePath);
+			}
+			
+		});
+		return imagePath;
+	}
+	
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newSingleThreadExecutor();
+		}
+		return sExecutor;
+	}
+}
@@ -0,0 +1,78 @@
+package com.silencecork.blurimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.SparseArray;
+import android.view.View;
+
+/**
+ * Carries the images of {@link BlurredImageView}s and their key frames, finished or still being
+ * built, over a configuration change, so the recreated views take them over instead of decoding
+ * and blurring everything again. Views are matched by id. In the Activity:
+ * 
+ * <pre>
+ * public Object onRetainNonConfigurationInstance() {
+ *     return RetainedKeyFrames.retain(mImageView);
+ * }
+ * 
+ * protected void onCreate(Bundle savedInstanceState) {
+ *     ...
+ *     RetainedKeyFrames retained = (RetainedKeyFrames) getLastNonConfigurationInstance();
+ *     if (retained != null) {
+ *         retained.restore(mImageView);
+ *     }
+ * }
+ * </pre>
+ * 
+ * It only holds bitmaps and the jobs building them, never a view or an Activity.
+ */
+public class RetainedKeyFrames {
+	
+	private final SparseArray<State> mStates = new SparseArray<State>();
+	
+	/**
+	 * Take everything over from views, which are left empty. Views without an id are skipped.
+	 */
+	public static RetainedKeyFrames retain(BlurredImageView... views) {
+		RetainedKeyFrames retained = new RetainedKeyFrames();
+		for (BlurredImageView view : views) {
+			if (view != null && view.getId() != View.NO_ID) {
+				retained.mStates.put(view.getId(), view.retainKeyFrames());
+			}
+		}
+		return retained;
+	}
+	
+	/**
+	 * Give the recreated view what was retained from the view with the same id.
+	 * 
+	 * @return false if nothing was retained for it
+	 */
+	public boolean restore(BlurredImageView view) {
+		State state = mStates.get(view.getId());
+		if (state == null) {
+			return false;
+		}
+		mStates.remove(view.getId());
+		view.restoreKeyFrames(state);
+		return true;
+	}
+	
+	static class State {
+		Bitmap mBitmap;
+		boolean mIsBitmapOwned;
+		KeyFrameHandle mKeyFrameHandle;
+		String mSourcePath;
+		Uri mSourceUri;
+		int mSourceWidth;
+		int mSourceHeight;
+		int mDecodedLongSide;
+		float mRadiusScale;
+		Rect mRegion;
+		BlurredImageView.KeyFrameSet mKeyFrameSet;
+		Object mBlurToken;
+		Bitmap mPlaceholder;
+		boolean mIsTrimmed;
+	}
+}
@@ -0,0 +1,265 @@
+package com.silencecork.blurimage;
+
+/**
+ * StackBlur, the kernel behind BlurImageUtil.fastblur, working directly on packed pixels.
+ */
+public class StackBlurEngine implements BlurEngine {
+	
+	/**
+	 * Scratch arrays of one blur. Blurring many frames of the same size on one thread can
+	 * hand the same Buffers to every call instead of allocating them each time.
+	 */
+	public static class Buffers {
+		private int[] mRed;
+		private int[] mGreen;
+		private int[] mBlue;
+		private int[] mVmin;
+		private int[] mDv;
+		private int[][] mStack;
+		private int mRadius;
+		
+		void ensure(int wh, int maxSide, int radius) {
+			if (mRed == null || mRed.length < wh) {
+				mRed = new int[wh];
+				mGreen = new int[wh];
+				mBlue = new int[wh];
+			}
+			if (mVmin == null || mVmin.length < maxSide) {
+				mVmin = new int[maxSide];
+			}
+			if (mDv == null || mRadius != radius) {
+				int div = radius + radius + 1;
+				int divsum = (div + 1) >> 1;
+				divsum *= divsum;
+				mDv = new int[256 * divsum];
+				for (int i = 0; i < 256 * divsum; i++) {
+					mDv[i] = (i / divsum);
+				}
+				mStack = new int[div][3];
+				mRadius = radius;
+			}
+		}
+	}
+
+	@Override
+	public void blur(int[] pix, int w, int h, int radius) {
+		blur(pix, w, h, radius, new Buffers());
+	}
+	
+	@Override
+	public int support(int radius) {
+		return Math.max(0, radius);
+	}
+	
+	public void blur(int[] pix, int w, int h, int radius, Buffers buffers) {
+		// Stack Blur v1.0 from
+		// http://www.quasimondo.com/StackBlurForCanvas/StackBlurDemo.html
+		//
+		// Java Author: Mario Klingemann <mario at quasimondo.com>
+		// http://incubator.quasimondo.com
+		// created Feburary 29, 2004
+		// Android port : Yahel Bouaziz <yahel at kayenko.com>
+		// http://www.kayenko.com
+		// ported april 5th, 2012
+
+		// This is a compromise between Gaussian Blur and Box blur
+		// It creates much better looking blurs than Box Blur, but is
+		// 7x faster than my Gaussian Blur implementation.
+		//
+		// I called it Stack Blur because this describes best how this
+		// filter works internally: it creates a kind of moving stack
+		// of colors whilst scanning through the image. Thereby it
+		// just has to add one new block of color to the right side
+		// of the stack and remove the leftmost color. The remaining
+		// colors on the topmost layer of the stack are either added on
+		// or reduced by one, depending on if they are on the right or
+		// on the left side of the stack.
+		//
+		// If you are using this algorithm in your code please add
+		// the following line:
+		//
+		// Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
+
+		if (radius < 1) {
+			return;
+		}
+
+		int wm = w - 1;
+		int hm = h - 1;
+		int wh = w * h;
+		int div = radius + radius + 1;
+
+		buffers.ensure(wh, Math.max(w, h), radius);
+		int r[] = buffers.mRed;
+		int g[] = buffers.mGreen;
+		int b[] = buffers.mBlue;
+		int rsum, gsum, bsum, x, y, i, p, yp, yi, yw;
+		int vmin[] = buffers.mVmin;
+		int dv[] = buffers.mDv;
+
+		yw = yi = 0;
+
+		int[][] stack = buffers.mStack;
+		int stackpointer;
+		int stackstart;
+		int[] sir;
+		int rbs;
+		int r1 = radius + 1;
+		int routsum, goutsum, boutsum;
+		int rinsum, ginsum, binsum;
+
+		for (y = 0; y < h; y++) {
+			rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+			for (i = -radius; i <= radius; i++) {
+				p = pix[yi + Math.min(wm, Math.max(i, 0))];
+				sir = stack[i + radius];
+				sir[0] = (p & 0xff0000) >> 16;
+				sir[1] = (p & 0x00ff00) >> 8;
+				sir[2] = (p & 0x0000ff);
+				rbs = r1 - Math.abs(i);
+				rsum += sir[0] * rbs;
+				gsum += sir[1] * rbs;
+				bsum += sir[2] * rbs;
+				if (i > 0) {
+					rinsum += sir[0];
+					ginsum += sir[1];
+					binsum += sir[2];
+				} else {
+					routsum += sir[0];
+					goutsum += sir[1];
+					boutsum += sir[2];
+				}
+			}
+			stackpointer = radius;
+
+			for (x = 0; x < w; x++) {
+
+				r[yi] = dv[rsum];
+				g[yi] = dv[gsum];
+				b[yi] = dv[bsum];
+
+				rsum -= routsum;
+				gsum -= goutsum;
+				bsum -= boutsum;
+
+				stackstart = stackpointer - radius + div;
+				sir = stack[stackstart % div];
+
+				routsum -= sir[0];
+				goutsum -= sir[1];
+				boutsum -= sir[2];
+
+				if (y == 0) {
+					vmin[x] = Math.min(x + radius + 1, wm);
+				}
+				p = pix[yw + vmin[x]];
+
+				sir[0] = (p & 0xff0000) >> 16;
+				sir[1] = (p & 0x00ff00) >> 8;
+				sir[2] = (p & 0x0000ff);
+
+				rinsum += sir[0];
+				ginsum += sir[1];
+				binsum += sir[2];
+
+				rsum += rinsum;
+				gsum += ginsum;
+				bsum += binsum;
+
+				stackpointer = (stackpointer + 1) % div;
+				sir = stack[(stackpointer) % div];
+
+				routsum += sir[0];
+				goutsum += sir[1];
+				boutsum += sir[2];
+
+				rinsum -= sir[0];
+				ginsum -= sir[1];
+				binsum -= sir[2];
+
+				yi++;
+			}
+			yw += w;
+		}
+		for (x = 0; x < w; x++) {
+			rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
+			yp = -radius * w;
+			for (i = -radius; i <= radius; i++) {
+				yi = Math.max(0, yp) + x;
+
+				sir = stack[i + radius];
+
+				sir[0] = r[yi];
+				sir[1] = g[yi];
+				sir[2] = b[yi];
+
+				rbs = r1 - Math.abs(i);
+
+				rsum += r[yi] * rbs;
+				gsum += g[yi] * rbs;
+				bsum += b[yi] * rbs;
+
+				if (i > 0) {
+					rinsum += sir[0];
+					ginsum += sir[1];
+					binsum += sir[2];
+				} else {
+					routsum += sir[0];
+					goutsum += sir[1];
+					boutsum += sir[2];
+				}
+
+				if (i < hm) {
+					yp += w;
+				}
+			}
+			yi = x;
+			stackpointer = radius;
+			for (y = 0; y < h; y++) {
+				// Preserve alpha channel: ( 0xff000000 & pix[yi] )
+				pix[yi] = ( 0xff000000 & pix[yi] ) | ( dv[rsum] << 16 ) | ( dv[gsum] << 8 ) | dv[bsum];
+
+				rsum -= routsum;
+				gsum -= goutsum;
+				bsum -= boutsum;
+
+				stackstart = stackpointer - radius + div;
+				sir = stack[stackstart % div];
+
+				routsum -= sir[0];
+				goutsum -= sir[1];
+				boutsum -= sir[2];
+
+				if (x == 0) {
+					vmin[y] = Math.min(y + r1, hm) * w;
+				}
+				p = x + vmin[y];
+
+				sir[0] = r[p];
+				sir[1] = g[p];
+				sir[2] = b[p];
+
+				rinsum += sir[0];
+				ginsum += sir[1];
+				binsum += sir[2];
+
+				rsum += rinsum;
+				gsum += ginsum;
+				bsum += binsum;
+
+				stackpointer = (stackpointer + 1) % div;
+				sir = stack[stackpointer];
+
+				routsum += sir[0];
+				goutsum += sir[1];
+				boutsum += sir[2];
+
+				rinsum -= sir[0];
+				ginsum -= sir[1];
+				binsum -= sir[2];
+
+				yi += w;
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.silencecork.blurimage;
+
+/**
+ * Summed-area table of an image. Built once in O(w * h), after which a box blur of any
+ * radius costs the same few lookups per pixel, so blur levels can be rendered on the fly.
+ * 
+ * The tables are plain ints: they wrap around for big images, but a box sum is a difference
+ * of four entries and stays exact as long as the sum itself fits, which it always does.
+ */
+public class SummedAreaTable {
+	
+	private final int mWidth;
+	private final int mHeight;
+	private final int mStride;
+	private final int[] mRed;
+	private final int[] mGreen;
+	private final int[] mBlue;
+	private final byte[] mAlpha;
+	
+	public SummedAreaTable(int[] pix, int w, int h) {
+		mWidth = w;
+		mHeight = h;
+		mStride = w + 1;
+		int size = mStride * (h + 1);
+		mRed = new int[size];
+		mGreen = new int[size];
+		mBlue = new int[size];
+		
+		boolean opaque = true;
+		for (int i = 0; i < w * h && opaque; i++) {
+			opaque = (pix[i] >>> 24) == 0xff;
+		}
+		mAlpha = opaque ? null : new byte[w * h];
+		
+		int i = 0;
+		for (int y = 0; y < h; y++) {
+			int rowSumR = 0;
+			int rowSumG = 0;
+			int rowSumB = 0;
+			int above = y * mStride;
+			int current = above + mStride;
+			for (int x = 0; x < w; x++, i++) {
+				int p = pix[i];
+				rowSumR += (p >> 16) & 0xff;
+				rowSumG += (p >> 8) & 0xff;
+				rowSumB += p & 0xff;
+				mRed[current + x + 1] = mRed[above + x + 1] + rowSumR;
+				mGreen[current + x + 1] = mGreen[above + x + 1] + rowSumG;
+				mBlue[current + x + 1] = mBlue[above + x + 1] + rowSumB;
+				if (mAlpha != null) {
+					mAlpha[i] = (byte) (p >>> 24);
+				}
+			}
+		}
+	}
+	
+	public int getWidth() {
+		return mWidth;
+	}
+	
+	public int getHeight() {
+		return mHeight;
+	}
+	
+	/**
+	 * The box radius whose variance matches a StackBlur of the given radius.
+	 */
+	public static float boxRadiusFor(float radius) {
+		if (radius <= 0) {
+			return 0;
+		}
+		return ((float) Math.sqrt(1 + 2 * radius * (radius + 2)) - 1) / 2;
+	}
+	
+	/**
+	 * Render the image blurred with radius (StackBlur scale) into out. Fractional box sizes
+	 * are blended from the two nearest ones so the strength changes continuously.
+	 */
+	public void blur(int[] out, float radius) {
+		float box = boxRadiusFor(radius);
+		int b0 = (int) box;
+		int b1 = b0 + 1;
+		int weight1 = (int) ((box - b0) * 256);
+		int weight0 = 256 - weight1;
+		
+		int i = 0;
+		for (int y = 0; y < mHeight; y++) {
+			int top0 = Math.max(0, y - b0) * mStride;
+			int bottom0 = Math.min(mHeight, y + b0 + 1) * mStride;
+			int top1 = Math.max(0, y - b1) * mStride;
+			int bottom1 = Math.min(mHeight, y + b1 + 1) * mStride;
+			int height0 = (bottom0 - top0) / mStride;
+			int height1 = (bottom1 - top1) / mStride;
+			for (int x = 0; x < mWidth; x++, i++) {
+				int left0 = Math.max(0, x - b0);
+				int right0 = Math.min(mWidth, x + b0 + 1);
+				int left1 = Math.max(0, x - b1);
+				int right1 = Math.min(mWidth, x + b1 + 1);
+				int area0 = (right0 - left0) * height0;
+				int area1 = (right1 - left1) * height1;
+				
+				int r = (weight0 * (boxSum(mRed, top0, bottom0, left0, right0) / area0)
+						+ weight1 * (boxSum(mRed, top1, bottom1, left1, right1) / area1)) >> 8;
+				int g = (weight0 * (boxSum(mGreen, top0, bottom0, left0, right0) / area0)
+						+ weight1 * (boxSum(mGreen, top1, bottom1, left1, right1) / area1)) >> 8;
+				int bl = (weight0 * (boxSum(mBlue, top0, bottom0, left0, right0) / area0)
+						+ weight1 * (boxSum(mBlue, top1, bottom1, left1, right1) / area1)) >> 8;
+				int alpha = (mAlpha != null) ? ((mAlpha[i] & 0xff) << 24) : 0xff000000;
+				out[i] = alpha | (r << 16) | (g << 8) | bl;
+			}
+		}
+	}
+	
+	private static int boxSum(int[] table, int top, int bottom, int left, int right) {
+		return table[bottom + right] - table[bottom + left] - table[top + right] + table[top + left];
+	}
+}
@@ -0,0 +1,218 @@
+package com.silencecork.blurimage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Creates the thumbnails of many files on a worker pool and hands each one to the UI thread as
+ * soon as it is done. How many decodes run at once is not set by the number of threads but by a
+ * budget of decoded pixels shared by all batches: a decode waits until its pixels, estimated
+ * from the bounds of the file, fit next to the ones already running.
+ */
+public class ThumbnailBatch {
+	private static final String TAG = "ThumbnailBatch";
+	
+	/* only an upper bound, the pixel budget decides how many of them decode */
+	private static final int MAX_THREADS = 8;
+	
+	/* decoded bitmaps are ARGB_8888 */
+	private static final int BYTES_PER_PIXEL = 4;
+	
+	public interface OnThumbnailListener {
+		/**
+		 * Called on the UI thread for every path, in the order the thumbnails complete.
+		 * 
+		 * @param thumbnail null if the file could not be decoded
+		 */
+		public void onThumbnail(String path, Bitmap thumbnail);
+		
+		public void onBatchFinished();
+	}
+	
+	private static ExecutorService sExecutor;
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+	private static final PixelBudget sBudget = new PixelBudget(
+			Runtime.getRuntime().maxMemory() / 8 / BYTES_PER_PIXEL);
+	
+	private final List<Future<?>> mFutures = new ArrayList<Future<?>>();
+	private final AtomicInteger mRemaining;
+	private final OnThumbnailListener mListener;
+	private volatile boolean mIsCancelled;
+	
+	/**
+	 * Start creating the thumbnails of paths.
+	 * 
+	 * @param kind ThumbnailUtils.MINI_KIND or MICRO_KIND
+	 * @param cache looked up first and filled with new thumbnails, may be null
+	 */
+	public static ThumbnailBatch start(List<String> paths, int kind, DiskThumbnailCache cache,
+			OnThumbnailListener listener) {
+		ThumbnailBatch batch = new ThumbnailBatch(paths.size(), listener);
+		if (paths.isEmpty()) {
+			batch.finishOne();
+			return batch;
+		}
+		ExecutorService executor = getExecutor();
+		synchronized (batch.mFutures) {
+			for (String path : paths) {
+				batch.mFutures.add(executor.submit(batch.new Job(path, kind, cache)));
+			}
+		}
+		return batch;
+	}
+	
+	/**
+	 * The number of decoded pixels all batches together may hold at once, an eighth of the heap
+	 * by default.
+	 */
+	public static void setPixelBudget(long pixels) {
+		sBudget.setLimit(pixels);
+	}
+	
+	private ThumbnailBatch(int count, OnThumbnailListener listener) {
+		mRemaining = new AtomicInteger(Math.max(1, count));
+		mListener = listener;
+	}
+	
+	/**
+	 * Stop the thumbnails which have not been delivered yet, no listener call follows.
+	 */
+	public void cancel() {
+		mIsCancelled = true;
+		synchronized (mFutures) {
+			for (Future<?> future : mFutures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	public boolean isCancelled() {
+		return mIsCancelled;
+	}
+	
+	private void deliver(final String path, final Bitmap thumbnail) {
+		sMainHandler.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (mIsCancelled) {
+					if (thumbnail != null) {
+						thumbnail.recycle();
+					}
+					return;
+				}
+				mListener.onThumbnail(path, thumbnail);
+			}
+		
+		});
+		finishOne();
+	}
+	
+	private void finishOne() {
+		if (mRemaining.decrementAndGet() != 0) {
+			return;
+		}
+		sMainHandler.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (!mIsCancelled) {
+					mListener.onBatchFinished();
+				}
+			}
+		
+		});
+	}
+	
+	private class Job implements Runnable {
+		private final String mPath;
+		private final int mKind;
+		private final DiskThumbnailCache mCache;
+		
+		Job(String path, int kind, DiskThumbnailCache cache) {
+			mPath = path;
+			mKind = kind;
+			mCache = cache;
+		}
+		
+		@Override
+		public void run() {
+			if (mIsCancelled) {
+				return;
+			}
+			long pixels = ThumbnailUtils.estimateDecodePixels(mPath, mKind);
+			Bitmap thumbnail = null;
+			try {
+				sBudget.acquire(pixels);
+				try {
+					thumbnail = ThumbnailUtils.createImageThumbnail(mPath, mKind, mCache);
+				} finally {
+					sBudget.release(pixels);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "thumbnail of " + mPath + " failed", e);
+			}
+			deliver(mPath, thumbnail);
+		}
+	
+	}
+	
+	/**
+	 * Counting semaphore over pixels. A request larger than the whole budget still runs, alone,
+	 * rather than never.
+	 */
+	static class PixelBudget {
+		private long mLimit;
+		private long mUsed;
+		
+		PixelBudget(long limit) {
+			mLimit = limit;
+		}
+		
+		synchronized void setLimit(long limit) {
+			mLimit = limit;
+			notifyAll();
+		}
+		
+		synchronized void acquire(long pixels) throws InterruptedException {
+			while (mUsed > 0 && mUsed + pixels > mLimit) {
+				wait();
+			}
+			mUsed += pixels;
+		}
+		
+		synchronized void release(long pixels) {
+			mUsed -= pixels;
+			notifyAll();
+		}
+	}
+	
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Thumbnail #" + mCount.getAndIncrement());
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			
+			});
+		}
+		return sExecutor;
+	}
+}
@@ -9,11 +9,13 @@ import java.io.IOException;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.media.ExifInterface;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -125,6 +127,51 @@ public class ThumbnailUtils {
         return bitmap;
     }
 
+    /**
+     * Same as {@link #createImageThumbnail(String, int)}, but looks in cache first and stores
+     * what it creates there.
+     */
+    public static Bitmap createImageThumbnail(String filePath, int kind, DiskThumbnailCache cache) {
+        if (cache == null) {
+            return createImageThumbnail(filePath, kind);
+        }
+        String key = DiskThumbnailCache.keyFor(filePath, "thumbnail" + kind);
+        Bitmap bitmap = cache.getBitmap(key);
+        if (bitmap == null) {
+            bitmap = createImageThumbnail(filePath, kind);
+            cache.putBitmap(key, bitmap, CompressFormat.JPEG, 85);
+        }
+        return bitmap;
+    }
+
+    /**
+     * The most pixels {@link #createImageThumbnail(String, int)} decodes for this file, read
+     * from its bounds only. Used to budget concurrent thumbnail decodes.
+     *
+     * @return 0 if the file cannot be read
+     */
+    static long estimateDecodePixels(String filePath, int kind) {
+        boolean wantMini = (kind == MINI_KIND);
+        int targetSize = wantMini
+                ? TARGET_SIZE_MINI_THUMBNAIL
+                : TARGET_SIZE_MICRO_THUMBNAIL;
+        int maxPixels = wantMini
+                ? MAX_NUM_PIXELS_THUMBNAIL
+                : MAX_NUM_PIXELS_MICRO_THUMBNAIL;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return 0;
+        }
+        // BitmapFactory rounds inSampleSize down to a power of two, e.g. 24 decodes as 16
+        int sampleSize = Integer.highestOneBit(computeSampleSize(options, targetSize, maxPixels));
+        long width = (options.outWidth + sampleSize - 1) / sampleSize;
+        long height = (options.outHeight + sampleSize - 1) / sampleSize;
+        // the square micro thumbnail is made from the decoded bitmap, both are alive at once
+        return width * height + (wantMini ? 0 : (long) targetSize * targetSize);
+    }
+
     /**
      * Creates a centered bitmap of the desired size.
      *
@@ -469,6 +516,13 @@ public class ThumbnailUtils {
     	if (limitation && targetSize > imageBase) {
     		targetSize = imageBase;
     	}
+    	
+    	Bitmap square = decodeSquareRegion(path, opts.outWidth, opts.outHeight, targetSize, imgRotate);
+    	if (square != null) {
+    		return square;
+    	}
+    	
+    	// region decoding not available for this file, decode all of it
     	int inSampleSize = (int)(imageBase /(float)targetSize);
     	inSampleSize = (inSampleSize <= 0) ? 1 : inSampleSize;
     	
@@ -516,6 +570,63 @@ public class ThumbnailUtils {
     	return finalBitmap;
     }
     
+    /**
+     * Decode only the center square of the image and rotate and scale it to targetSize in one
+     * draw. A rotation by a multiple of 90 degrees maps the center square onto itself, so the
+     * region can be taken in the coordinates of the file before rotation.
+     * 
+     * @return null if the file cannot be decoded by region, e.g. it is not a JPEG or PNG
+     */
+    private static Bitmap decodeSquareRegion(String path, int width, int height, int targetSize, float rotate) {
+        if (Build.VERSION.SDK_INT < 10 || width <= 0 || height <= 0) {
+            return null;
+        }
+        int side = Math.min(width, height);
+        int left = (width - side) / 2;
+        int top = (height - side) / 2;
+        Rect region = new Rect(left, top, left + side, top + side);
+        
+        // the largest power of two which still leaves at least targetSize pixels
+        int sampleSize = 1;
+        while (side / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        
+        BitmapRegionDecoder decoder = null;
+        Bitmap decoded = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(path, false);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            decoded = decoder.decodeRegion(region, options);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot decode region of " + path, e);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "out of memory decoding region of " + path);
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+        if (decoded == null) {
+            return null;
+        }
+        
+        int decodedSide = Math.min(decoded.getWidth(), decoded.getHeight());
+        float scale = targetSize / (float) decodedSide;
+        Matrix m = new Matrix();
+        m.postTranslate(-decoded.getWidth() / 2f, -decoded.getHeight() / 2f);
+        m.postRotate(rotate);
+        m.postScale(scale, scale);
+        m.postTranslate(targetSize / 2f, targetSize / 2f);
+        
+        Bitmap finalBitmap = Bitmap.createBitmap(targetSize, targetSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(finalBitmap);
+        canvas.drawBitmap(decoded, m, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        decoded.recycle();
+        return finalBitmap;
+    }
+    
     /*public static Bitmap getSquareBitmap(Bitmap b, int targetSize, boolean limitation) {
     	if (b == null) {
     		return null;
@@ -558,31 +669,39 @@ public class ThumbnailUtils {
     	return finalBitmap;
     }*/
     
+    /**
+     * Writes bitmap to a temporary file next to cacheBitmapPath and renames it into place, so
+     * readers never see a partially written file. For size limits and eviction use
+     * {@link DiskThumbnailCache}.
+     */
     public static boolean saveBitmap(String cacheBitmapPath, Bitmap bitmap) {
     	if (bitmap == null || bitmap.isRecycled()) {
     		return false;
     	}
+    	File tmp = new File(cacheBitmapPath + ".tmp");
+    	boolean saved = false;
     	FileOutputStream stream = null;
 		try {
-			stream = new FileOutputStream(cacheBitmapPath);
+			stream = new FileOutputStream(tmp);
 			android.util.Log.i("Compress", "compress bitmap " + cacheBitmapPath);
-			return bitmap.compress(CompressFormat.JPEG, 85, stream);
+			saved = bitmap.compress(CompressFormat.JPEG, 85, stream);
 		} catch (Exception e) {
 			e.printStackTrace();
-			File f = new File(cacheBitmapPath);
-			if (f.exists()) {
-				f.delete();
-			}
 		} finally {
 			if (stream != null) {
 				try {
 					stream.close();
 				} catch (IOException e) {
 					e.printStackTrace();
+					saved = false;
 				}
 			}
 		}
-    	return false;
+		if (!saved || !tmp.renameTo(new File(cacheBitmapPath))) {
+			tmp.delete();
+			return false;
+		}
+    	return true;
     }
     
     public static String generateMiniPathString(String cachedDirectory, String path) {
@@ -593,18 +712,8 @@ public class ThumbnailUtils {
 		if (!dir.isDirectory() || !dir.exists()) {
 			return null;
 		}
-		File f = new File(path);
-    	long modifiedTime = 0L;
-    	if (f.exists()) {
-    		modifiedTime = f.lastModified();
-    	}
-    	StringBuilder b = new StringBuilder();
-    	b.append(path);
-    	b.append(String.valueOf(modifiedTime));
-    	String pathString = b.toString();
-    	int hashCode = pathString.hashCode();
-    	
-    	return cachedDirectory + hashCode;
+		// SHA-1 of path, size and modified time, String.hashCode() collides far too easily
+    	return cachedDirectory + DiskThumbnailCache.keyFor(path, "mini");
 	}
     
     public static Bitmap scalePhotoToSpecificDimension(String path, int targetWidth, int targetHeight) {
@@ -681,6 +790,23 @@ public class ThumbnailUtils {
     	return bitmap;
     }
     
+    /**
+     * Same as {@link #decodeBitmapBaseOnLongSide(String, int)}, but looks in cache first and
+     * stores what it decodes there.
+     */
+    public static Bitmap decodeBitmapBaseOnLongSide(String path, int targetSize, DiskThumbnailCache cache) {
+    	if (cache == null) {
+    		return decodeBitmapBaseOnLongSide(path, targetSize);
+    	}
+    	String key = DiskThumbnailCache.keyFor(path, "long" + targetSize);
+    	Bitmap bitmap = cache.getBitmap(key);
+    	if (bitmap == null) {
+    		bitmap = decodeBitmapBaseOnLongSide(path, targetSize);
+    		cache.putBitmap(key, bitmap, CompressFormat.JPEG, 85);
+    	}
+    	return bitmap;
+    }
+    
     public static Bitmap decodeBitmapToSpecificSize(String path, int targetWidth) {
     	BitmapFactory.Options opts = new BitmapFactory.Options();
     	opts.inJustDecodeBounds = true;
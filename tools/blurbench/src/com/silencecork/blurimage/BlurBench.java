@@ -0,0 +1,448 @@
+package com.silencecork.blurimage;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Quality and throughput harness for the {@link BlurEngine}s. Every engine blurs a fixed corpus
+ * of synthetic and real images at the blurRadiusAtFrame radii and is scored against a
+ * reference Gaussian of the same variance: worst PSNR, worst max channel error, and speed
+ * relative to the reference so the numbers compare across machines. With a baseline file the
+ * run exits with 1 when an engine got worse than the baseline by more than its tolerance.
+ * 
+ * Plain JDK, see tools/blurbench/README.md for how to build and run it.
+ */
+public class BlurBench {
+	
+	/* mirror BlurredImageView.BlurImageUtil, which cannot be loaded without Android */
+	private static final int KEY_FRAME_COUNT = 5;
+	private static final int MAX_SUPPORTED_BLUR_PIXELS = 25;
+	
+	private static final long MIN_TIMING_NANOS = 100 * 1000 * 1000L;
+	private static final int MIN_TIMING_RUNS = 3;
+	
+	private static final double DEFAULT_PSNR_TOLERANCE = 0.5;
+	private static final int DEFAULT_MAX_ERROR_TOLERANCE = 2;
+	private static final double DEFAULT_SPEED_TOLERANCE = 0.3;
+	
+	static abstract class Candidate {
+		final String mName;
+		
+		Candidate(String name) {
+			mName = name;
+		}
+		
+		abstract void blur(int[] pix, int w, int h, int radius);
+	}
+	
+	static class EngineCandidate extends Candidate {
+		private final BlurEngine mEngine;
+		
+		EngineCandidate(String name, BlurEngine engine) {
+			super(name);
+			mEngine = engine;
+		}
+		
+		@Override
+		void blur(int[] pix, int w, int h, int radius) {
+			mEngine.blur(pix, w, h, radius);
+		}
+	}
+	
+	/* blurTo() path: the table is built for every blur, as it would be for a new image */
+	static class SummedAreaTableCandidate extends Candidate {
+		
+		SummedAreaTableCandidate() {
+			super("summed-area-table");
+		}
+		
+		@Override
+		void blur(int[] pix, int w, int h, int radius) {
+			new SummedAreaTable(pix, w, h).blur(pix, radius);
+		}
+	}
+	
+	static class Image {
+		final String mName;
+		final int mWidth;
+		final int mHeight;
+		final int[] mPixels;
+		
+		Image(String name, int w, int h, int[] pix) {
+			mName = name;
+			mWidth = w;
+			mHeight = h;
+			mPixels = pix;
+		}
+	}
+	
+	static class Score {
+		double mWorstPsnr = Double.POSITIVE_INFINITY;
+		int mWorstMaxError;
+		long mNanos;
+		long mReferenceNanos;
+		
+		double speedup() {
+			return (mNanos > 0) ? (double) mReferenceNanos / mNanos : 0;
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		File baseline = null;
+		boolean record = false;
+		int screenHeight = 1920;
+		int size = 512;
+		List<File> imageFiles = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("--baseline".equals(arg)) {
+				baseline = new File(args[++i]);
+			} else if ("--record".equals(arg)) {
+				record = true;
+			} else if ("--screen-height".equals(arg)) {
+				screenHeight = Integer.parseInt(args[++i]);
+			} else if ("--size".equals(arg)) {
+				size = Integer.parseInt(args[++i]);
+			} else if ("--images".equals(arg)) {
+				imageFiles.add(new File(args[++i]));
+			} else {
+				System.err.println("usage: BlurBench [--baseline file [--record]] [--images file|dir]... "
+						+ "[--screen-height px] [--size px]");
+				System.exit(2);
+			}
+		}
+		
+		int[] radii = keyFrameRadii(screenHeight);
+		List<Image> corpus = createSyntheticCorpus(size);
+		for (File file : imageFiles) {
+			loadImages(file, corpus);
+		}
+		
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		candidates.add(new EngineCandidate("stack", new StackBlurEngine()));
+		candidates.add(new EngineCandidate("dual-filter", new DualFilterBlurEngine()));
+		candidates.add(new EngineCandidate("yuv", new YuvBlurEngine()));
+		candidates.add(new SummedAreaTableCandidate());
+		
+		System.out.println("radii " + java.util.Arrays.toString(radii) + ", " + corpus.size() + " images");
+		System.out.println(String.format(Locale.US, "%-20s %-32s %6s %9s %7s %10s",
+				"engine", "image", "radius", "psnr dB", "max err", "Mpix/s"));
+		
+		Score[] scores = new Score[candidates.size()];
+		for (int c = 0; c < scores.length; c++) {
+			scores[c] = new Score();
+		}
+		for (Image image : corpus) {
+			for (int radius : radii) {
+				if (radius < 1) {
+					continue;
+				}
+				int[] reference = image.mPixels.clone();
+				gaussianBlur(reference, image.mWidth, image.mHeight, radius);
+				long referenceNanos = time(null, image, radius);
+				for (int c = 0; c < scores.length; c++) {
+					measure(candidates.get(c), image, radius, reference, referenceNanos, scores[c]);
+				}
+			}
+		}
+		
+		Properties results = new Properties();
+		for (int c = 0; c < scores.length; c++) {
+			Candidate candidate = candidates.get(c);
+			Score score = scores[c];
+			results.setProperty(candidate.mName + ".psnr", format(score.mWorstPsnr));
+			results.setProperty(candidate.mName + ".maxError", Integer.toString(score.mWorstMaxError));
+			results.setProperty(candidate.mName + ".speedup", format(score.speedup()));
+			System.out.println(String.format(Locale.US, "%-20s worst psnr %.2f dB, worst max error %d, %.2fx the reference",
+					candidate.mName, score.mWorstPsnr, score.mWorstMaxError, score.speedup()));
+		}
+		
+		if (baseline == null) {
+			return;
+		}
+		if (record) {
+			results.setProperty("tolerance.psnr", format(DEFAULT_PSNR_TOLERANCE));
+			results.setProperty("tolerance.maxError", Integer.toString(DEFAULT_MAX_ERROR_TOLERANCE));
+			results.setProperty("tolerance.speed", format(DEFAULT_SPEED_TOLERANCE));
+			OutputStream out = new FileOutputStream(baseline);
+			try {
+				results.store(out, "BlurBench baseline, screen height " + screenHeight + ", size " + size);
+			} finally {
+				out.close();
+			}
+			System.out.println("baseline recorded in " + baseline);
+			return;
+		}
+		
+		Properties expected = new Properties();
+		InputStream in = new FileInputStream(baseline);
+		try {
+			expected.load(in);
+		} finally {
+			in.close();
+		}
+		if (!compare(candidates, expected, results)) {
+			System.exit(1);
+		}
+		System.out.println("no regression against " + baseline);
+	}
+	
+	/**
+	 * The same schedule as BlurImageUtil.blurRadiusAtFrame() for a screen of the given height.
+	 */
+	static int[] keyFrameRadii(int screenHeight) {
+		int maxBlurPx = (int) (screenHeight * 400 * 0.0001f);
+		int sampleSize = 4;
+		while (maxBlurPx / sampleSize > MAX_SUPPORTED_BLUR_PIXELS) {
+			sampleSize <<= 1;
+		}
+		int maxPrescaledBlurPixels = maxBlurPx / sampleSize;
+		
+		int[] radii = new int[KEY_FRAME_COUNT];
+		for (int i = 0; i < KEY_FRAME_COUNT; i++) {
+			// AccelerateDecelerateInterpolator
+			float input = (i + 1) / (float) KEY_FRAME_COUNT;
+			float interpolated = (float) (Math.cos((input + 1) * Math.PI) / 2.0f) + 0.5f;
+			radii[i] = (int) (maxPrescaledBlurPixels * interpolated);
+		}
+		return radii;
+	}
+	
+	private static void measure(Candidate candidate, Image image, int radius, int[] reference, 
+			long referenceNanos, Score score) {
+		int w = image.mWidth;
+		int h = image.mHeight;
+		int[] actual = image.mPixels.clone();
+		candidate.blur(actual, w, h, radius);
+		
+		long squared = 0;
+		int maxError = 0;
+		for (int i = 0; i < actual.length; i++) {
+			for (int shift = 0; shift <= 16; shift += 8) {
+				int d = Math.abs(((actual[i] >> shift) & 0xff) - ((reference[i] >> shift) & 0xff));
+				squared += d * d;
+				maxError = Math.max(maxError, d);
+			}
+		}
+		double mse = squared / (3.0 * actual.length);
+		double psnr = (mse == 0) ? 99 : 10 * Math.log10(255 * 255 / mse);
+		
+		long nanos = time(candidate, image, radius);
+		score.mWorstPsnr = Math.min(score.mWorstPsnr, psnr);
+		score.mWorstMaxError = Math.max(score.mWorstMaxError, maxError);
+		score.mNanos += nanos;
+		score.mReferenceNanos += referenceNanos;
+		
+		System.out.println(String.format(Locale.US, "%-20s %-32s %6d %9.2f %7d %10.1f", candidate.mName,
+				image.mName, radius, psnr, maxError, (double) w * h * 1000 / nanos));
+	}
+	
+	/**
+	 * Average nanoseconds of one blur, null times the reference Gaussian.
+	 */
+	private static long time(Candidate candidate, Image image, int radius) {
+		int[] pix = new int[image.mPixels.length];
+		// warm up
+		runOnce(candidate, image, radius, pix);
+		
+		int runs = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			runOnce(candidate, image, radius, pix);
+			runs++;
+			elapsed = System.nanoTime() - start;
+		} while (runs < MIN_TIMING_RUNS || elapsed < MIN_TIMING_NANOS);
+		return elapsed / runs;
+	}
+	
+	private static void runOnce(Candidate candidate, Image image, int radius, int[] pix) {
+		System.arraycopy(image.mPixels, 0, pix, 0, pix.length);
+		if (candidate != null) {
+			candidate.blur(pix, image.mWidth, image.mHeight, radius);
+		} else {
+			gaussianBlur(pix, image.mWidth, image.mHeight, radius);
+		}
+	}
+	
+	private static boolean compare(List<Candidate> candidates, Properties expected, Properties actual) {
+		double psnrTolerance = Double.parseDouble(expected.getProperty("tolerance.psnr",
+				format(DEFAULT_PSNR_TOLERANCE)));
+		int maxErrorTolerance = Integer.parseInt(expected.getProperty("tolerance.maxError",
+				Integer.toString(DEFAULT_MAX_ERROR_TOLERANCE)));
+		double speedTolerance = Double.parseDouble(expected.getProperty("tolerance.speed",
+				format(DEFAULT_SPEED_TOLERANCE)));
+		
+		boolean passed = true;
+		for (Candidate candidate : candidates) {
+			String name = candidate.mName;
+			if (expected.getProperty(name + ".psnr") == null) {
+				System.out.println("no baseline for " + name + ", record one with --record");
+				continue;
+			}
+			double psnr = Double.parseDouble(actual.getProperty(name + ".psnr"));
+			double expectedPsnr = Double.parseDouble(expected.getProperty(name + ".psnr"));
+			if (psnr < expectedPsnr - psnrTolerance) {
+				System.out.println(String.format(Locale.US, "FAIL %s: psnr %.2f dB, baseline %.2f dB", name, psnr, expectedPsnr));
+				passed = false;
+			}
+			int maxError = Integer.parseInt(actual.getProperty(name + ".maxError"));
+			int expectedMaxError = Integer.parseInt(expected.getProperty(name + ".maxError"));
+			if (maxError > expectedMaxError + maxErrorTolerance) {
+				System.out.println("FAIL " + name + ": max error " + maxError + ", baseline " + expectedMaxError);
+				passed = false;
+			}
+			double speedup = Double.parseDouble(actual.getProperty(name + ".speedup"));
+			double expectedSpeedup = Double.parseDouble(expected.getProperty(name + ".speedup"));
+			if (speedup < expectedSpeedup * (1 - speedTolerance)) {
+				System.out.println(String.format(Locale.US, "FAIL %s: %.2fx the reference, baseline %.2fx",
+						name, speedup, expectedSpeedup));
+				passed = false;
+			}
+		}
+		return passed;
+	}
+	
+	/**
+	 * Separable Gaussian with the variance of a StackBlur of radius, r * (r + 2) / 6, edges
+	 * clamped like StackBlur does. Slow on purpose, it is the reference.
+	 */
+	static void gaussianBlur(int[] pix, int w, int h, int radius) {
+		double sigma = Math.sqrt(radius * (radius + 2) / 6.0);
+		int extent = (int) Math.ceil(3 * sigma);
+		double[] kernel = new double[2 * extent + 1];
+		double sum = 0;
+		for (int i = -extent; i <= extent; i++) {
+			kernel[i + extent] = Math.exp(-i * i / (2 * sigma * sigma));
+			sum += kernel[i + extent];
+		}
+		for (int i = 0; i < kernel.length; i++) {
+			kernel[i] /= sum;
+		}
+		
+		double[][] planes = new double[3][w * h];
+		for (int i = 0; i < pix.length; i++) {
+			planes[0][i] = (pix[i] >> 16) & 0xff;
+			planes[1][i] = (pix[i] >> 8) & 0xff;
+			planes[2][i] = pix[i] & 0xff;
+		}
+		double[] tmp = new double[w * h];
+		for (double[] plane : planes) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					double v = 0;
+					for (int k = -extent; k <= extent; k++) {
+						int sx = Math.min(w - 1, Math.max(0, x + k));
+						v += kernel[k + extent] * plane[y * w + sx];
+					}
+					tmp[y * w + x] = v;
+				}
+			}
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					double v = 0;
+					for (int k = -extent; k <= extent; k++) {
+						int sy = Math.min(h - 1, Math.max(0, y + k));
+						v += kernel[k + extent] * tmp[sy * w + x];
+					}
+					plane[y * w + x] = v;
+				}
+			}
+		}
+		for (int i = 0; i < pix.length; i++) {
+			int r = (int) Math.round(planes[0][i]);
+			int g = (int) Math.round(planes[1][i]);
+			int b = (int) Math.round(planes[2][i]);
+			pix[i] = (pix[i] & 0xff000000) | (r << 16) | (g << 8) | b;
+		}
+	}
+	
+	static List<Image> createSyntheticCorpus(int size) {
+		List<Image> corpus = new ArrayList<Image>();
+		int n = size * size;
+		
+		int[] gradient = new int[n];
+		int[] checker = new int[n];
+		int[] noise = new int[n];
+		int[] edges = new int[n];
+		int[] zonePlate = new int[n];
+		Random random = new Random(1234);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int i = y * size + x;
+				int r = x * 255 / (size - 1);
+				int g = y * 255 / (size - 1);
+				gradient[i] = 0xff000000 | (r << 16) | (g << 8) | (255 - r);
+				checker[i] = (((x >> 3) + (y >> 3)) & 1) == 0 ? 0xff000000 : 0xffffffff;
+				noise[i] = 0xff000000 | (random.nextInt() & 0xffffff);
+				boolean inside = x > size / 4 && x < size * 3 / 4 && y > size / 4 && y < size * 3 / 4;
+				edges[i] = inside ? 0xffff8000 : 0xff0040ff;
+				double dx = x - size / 2.0;
+				double dy = y - size / 2.0;
+				int v = (int) Math.round(127.5 + 127.5 * Math.cos(Math.PI * (dx * dx + dy * dy) / size));
+				zonePlate[i] = 0xff000000 | (v << 16) | (v << 8) | v;
+			}
+		}
+		corpus.add(new Image("gradient", size, size, gradient));
+		corpus.add(new Image("checker-8", size, size, checker));
+		corpus.add(new Image("noise", size, size, noise));
+		corpus.add(new Image("edges", size, size, edges));
+		corpus.add(new Image("zone-plate", size, size, zonePlate));
+		return corpus;
+	}
+	
+	/**
+	 * Add an image file, or every image of a directory, composited onto white so alpha does
+	 * not take part in the scores.
+	 */
+	static void loadImages(File file, List<Image> corpus) throws IOException {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				java.util.Arrays.sort(children);
+				for (File child : children) {
+					if (child.isFile()) {
+						loadImages(child, corpus);
+					}
+				}
+			}
+			return;
+		}
+		
+		BufferedImage read = ImageIO.read(file);
+		if (read == null) {
+			System.err.println("skipping " + file + ", not an image");
+			return;
+		}
+		int w = read.getWidth();
+		int h = read.getHeight();
+		BufferedImage opaque = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = opaque.createGraphics();
+		g.setColor(java.awt.Color.WHITE);
+		g.fillRect(0, 0, w, h);
+		g.drawImage(read, 0, 0, null);
+		g.dispose();
+		int[] pix = opaque.getRGB(0, 0, w, h, null, 0, w);
+		for (int i = 0; i < pix.length; i++) {
+			pix[i] |= 0xff000000;
+		}
+		corpus.add(new Image(file.getParentFile().getName() + "/" + file.getName(), w, h, pix));
+	}
+	
+	private static String format(double value) {
+		return String.format(Locale.US, "%.3f", value);
+	}
+}
@@ -0,0 +1,182 @@
+package com.silencecork.blurimage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks of {@link FrameSequenceBlur} that run on a plain JDK, see the README next to it.
+ * Exits with 1 if a check fails.
+ */
+public class FrameSequenceBlurTest {
+	
+	private static final int WIDTH = 32;
+	private static final int HEIGHT = 24;
+	private static final int RADIUS = 4;
+	
+	private static int sFailures;
+	
+	public static void main(String[] args) throws Exception {
+		testAllFramesBlurredInOrder();
+		testSourceFailingPartway();
+		testReusedAfterFailures();
+		if (sFailures > 0) {
+			System.out.println(sFailures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+	
+	private static void testAllFramesBlurredInOrder() throws Exception {
+		RecordingSink sink = new RecordingSink();
+		new FrameSequenceBlur(new StackBlurEngine(), RADIUS, 2).run(new PatternSource(20, -1), sink);
+		check(sink.mIndices.size() == 20, "all 20 frames reach the sink, got " + sink.mIndices.size());
+		checkDelivered(sink, "complete run");
+	}
+	
+	/**
+	 * The source throws while earlier frames still wait for the slow blur stage: run() has to
+	 * rethrow the failure and the sink must never get one of the frames left unblurred.
+	 */
+	private static void testSourceFailingPartway() throws Exception {
+		for (int attempt = 0; attempt < 20; attempt++) {
+			RecordingSink sink = new RecordingSink();
+			Exception thrown = null;
+			try {
+				new FrameSequenceBlur(new SlowEngine(), RADIUS, 4).run(new PatternSource(20, 6), sink);
+			} catch (Exception e) {
+				thrown = e;
+			}
+			check(thrown != null && "decode failed at 6".equals(thrown.getMessage()),
+					"run() rethrows the source failure, got " + thrown);
+			check(sink.mIndices.size() <= 6, "no frame after the failure reaches the sink");
+			checkDelivered(sink, "source failing partway");
+		}
+	}
+	
+	/**
+	 * Every failed run has to hand all frames back, otherwise a later run of the same instance
+	 * waits for a free frame forever.
+	 */
+	private static void testReusedAfterFailures() throws Exception {
+		final FrameSequenceBlur blur = new FrameSequenceBlur(new SlowEngine(), RADIUS, 1);
+		final RecordingSink sink = new RecordingSink();
+		Thread runner = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int attempt = 0; attempt < 10; attempt++) {
+					try {
+						blur.run(new PatternSource(20, 2 + attempt % 3), new RecordingSink());
+						check(false, "run() with a failing source returns normally");
+					} catch (Exception e) {
+						// expected
+					}
+				}
+				try {
+					blur.run(new PatternSource(20, -1), sink);
+				} catch (Exception e) {
+					check(false, "run() after failures threw " + e);
+				}
+			}
+			
+		});
+		// a lost frame makes run() wait forever, the check must not
+		runner.setDaemon(true);
+		runner.start();
+		runner.join(10000);
+		check(!runner.isAlive(), "runs of a reused instance return");
+		if (!runner.isAlive()) {
+			check(sink.mIndices.size() == 20, "all 20 frames reach the sink after failures, got " + sink.mIndices.size());
+			checkDelivered(sink, "reused after failures");
+		}
+	}
+	
+	private static void checkDelivered(RecordingSink sink, String name) {
+		for (int i = 0; i < sink.mIndices.size(); i++) {
+			int index = sink.mIndices.get(i);
+			check(index == i, name + ": frame " + i + " arrived as " + index);
+			int[] expected = PatternSource.pattern(index);
+			new StackBlurEngine().blur(expected, WIDTH, HEIGHT, RADIUS);
+			check(Arrays.equals(expected, sink.mPixels.get(i)), name + ": frame " + index + " reached the sink unblurred");
+		}
+	}
+	
+	private static synchronized void check(boolean condition, String message) {
+		if (!condition) {
+			sFailures++;
+			System.out.println("FAILED: " + message);
+		}
+	}
+	
+	/**
+	 * Frames with hard edges, so a blurred frame never equals the unblurred one.
+	 */
+	private static class PatternSource implements FrameSequenceBlur.FrameSource {
+		private final int mCount;
+		private final int mFailAt;
+		private int mNext;
+		
+		PatternSource(int count, int failAt) {
+			mCount = count;
+			mFailAt = failAt;
+		}
+		
+		static int[] pattern(int index) {
+			int[] pix = new int[WIDTH * HEIGHT];
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					pix[y * WIDTH + x] = (((x / 4) + (y / 4) + index) % 2 == 0) ? 0xffffffff : 0xff000000 | (index * 10);
+				}
+			}
+			return pix;
+		}
+		
+		@Override
+		public boolean next(FrameSequenceBlur.Frame frame) throws Exception {
+			if (mNext == mFailAt) {
+				throw new Exception("decode failed at " + mFailAt);
+			}
+			if (mNext == mCount) {
+				return false;
+			}
+			frame.ensureSize(WIDTH, HEIGHT);
+			System.arraycopy(pattern(mNext), 0, frame.pixels, 0, WIDTH * HEIGHT);
+			mNext++;
+			return true;
+		}
+	}
+	
+	private static class RecordingSink implements FrameSequenceBlur.FrameSink {
+		final List<Integer> mIndices = new ArrayList<Integer>();
+		final List<int[]> mPixels = new ArrayList<int[]>();
+		
+		@Override
+		public void onFrame(FrameSequenceBlur.Frame frame) {
+			mIndices.add(frame.index);
+			mPixels.add(Arrays.copyOf(frame.pixels, frame.width * frame.height));
+		}
+	}
+	
+	/**
+	 * StackBlur which takes long enough for the decoded queue to fill up.
+	 */
+	private static class SlowEngine implements BlurEngine {
+		private final StackBlurEngine mEngine = new StackBlurEngine();
+		
+		@Override
+		public void blur(int[] pix, int w, int h, int radius) {
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mEngine.blur(pix, w, h, radius);
+		}
+		
+		@Override
+		public int support(int radius) {
+			return mEngine.support(radius);
+		}
+	}
+}